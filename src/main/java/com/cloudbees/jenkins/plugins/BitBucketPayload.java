@@ -2,24 +2,191 @@ package com.cloudbees.jenkins.plugins;
 
 import hudson.EnvVars;
 import hudson.model.AbstractBuild;
+import hudson.model.Action;
 import hudson.model.EnvironmentContributingAction;
 import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Inject the payload received by BitBucket into the build through $BITBUCKET_PAYLOAD so it can be processed
+ * Inject the payload received by BitBucket into the build through $BITBUCKET_PAYLOAD so it can be processed.
+ * <p>
+ * In file mode the payload is not copied into the environment of every process: it is written once per build
+ * next to the workspace and only its path is exposed through $BITBUCKET_PAYLOAD_FILE, see {@link BitBucketPayloadFile}.
+ * <p>
+ * Payloads split per change (see {@link #split()}) or kept apart (see {@link #keptApart()}) are never folded into a
+ * queued build of another branch.
  * @since January 9, 2016
  * @version 1.1.5
  */
-public class BitBucketPayload extends InvisibleAction implements EnvironmentContributingAction {
+public class BitBucketPayload extends InvisibleAction implements EnvironmentContributingAction, Queue.QueueAction {
     private final @Nonnull String payload;
+    private final boolean asFile;
+    private String file;
+    private String notifiedRepository;
+    private String notifiedBranch;
+    private String notifiedCommit;
+    private boolean perChange;
+    private boolean apart;
+    private transient String lane;
+    private transient JSONObject json;
 
     public BitBucketPayload(@Nonnull String payload) {
+        this(payload, false);
+    }
+
+    public BitBucketPayload(@Nonnull String payload, boolean asFile) {
         this.payload = payload;
+        this.asFile = asFile;
+    }
+
+    /**
+     * Creates the payload of a notification received without any JSON, see {@link BitbucketNotifyReceiver}.
+     *
+     * @param url URL of the repository
+     * @param branch pushed branch
+     * @param commit pushed commit, if known
+     */
+    public static BitBucketPayload notification(String url, String branch, @CheckForNull String commit) {
+        BitBucketPayload payload = new BitBucketPayload("");
+        payload.notifiedRepository = repositoryOf(url);
+        payload.notifiedBranch = branch;
+        payload.notifiedCommit = commit;
+        return payload;
+    }
+
+    /**
+     * Returns a copy of this payload handed over to the build as a file or not.
+     */
+    public BitBucketPayload withAsFile(boolean asFile) {
+        BitBucketPayload copy = new BitBucketPayload(payload, asFile);
+        copy.notifiedRepository = notifiedRepository;
+        copy.notifiedBranch = notifiedBranch;
+        copy.notifiedCommit = notifiedCommit;
+        copy.perChange = perChange;
+        copy.apart = apart;
+        copy.lane = lane;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of this payload which is not folded into a queued build of another repository or branch, so
+     * that superseding that build never drops this push.
+     */
+    public BitBucketPayload keptApart() {
+        BitBucketPayload copy = withAsFile(asFile);
+        copy.apart = true;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of this payload polled and scheduled in the given lane of the trigger queue.
+     */
+    public BitBucketPayload withLane(@CheckForNull String lane) {
+        BitBucketPayload copy = withAsFile(asFile);
+        copy.lane = lane;
+        return copy;
+    }
+
+    /**
+     * Name of the ingestion lane this payload was received in, {@code null} if it did not go through one.
+     */
+    @CheckForNull
+    public String getLane() {
+        return lane;
+    }
+
+    /**
+     * Splits a push of several branches or tags into one payload per change, each holding the whole payload but a
+     * single entry of {@code push.changes} (Bitbucket Cloud, Post Webhooks) or {@code changes} (Bitbucket Server).
+     * Other payloads are returned as is.
+     */
+    public List<BitBucketPayload> split() {
+        if (isNotification()) {
+            return Collections.singletonList(this);
+        }
+        JSONObject json = getJSON();
+        JSONObject push = json.optJSONObject("push");
+        JSONArray changes = push != null && !push.isNullObject() ? push.optJSONArray("changes") : json.optJSONArray("changes");
+        if (changes == null || changes.size() < 2) {
+            return Collections.singletonList(this);
+        }
+        List<BitBucketPayload> payloads = new ArrayList<BitBucketPayload>();
+        for (Object change : changes) {
+            JSONObject copy = JSONObject.fromObject(payload);
+            JSONArray one = new JSONArray().element(change);
+            if (push != null && !push.isNullObject()) {
+                copy.getJSONObject("push").element("changes", one);
+            } else {
+                copy.element("changes", one);
+            }
+            BitBucketPayload single = new BitBucketPayload(copy.toString(), asFile);
+            single.perChange = true;
+            single.lane = lane;
+            payloads.add(single);
+        }
+        return payloads;
+    }
+
+    /**
+     * Whether this payload holds a single change split from a larger push.
+     */
+    public boolean isPerChange() {
+        return perChange;
+    }
+
+    /**
+     * Keeps the builds of the changes of a split push apart: a payload split per change or kept apart is not folded
+     * into a queued build of another repository or branch. Builds of the same branch are still folded.
+     */
+    public boolean shouldSchedule(List<Action> actions) {
+        for (Action action : actions) {
+            if (action instanceof BitBucketPayload) {
+                BitBucketPayload other = (BitBucketPayload) action;
+                if (!perChange && !apart && !other.perChange && !other.apart) {
+                    return false;
+                }
+                return !equalsIgnoreCase(getRepository(), other.getRepository()) || !equal(getBranch(), other.getBranch());
+            }
+        }
+        return false;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static boolean equalsIgnoreCase(String a, String b) {
+        return a == null ? b == null : a.equalsIgnoreCase(b);
+    }
+
+    /**
+     * Whether this payload comes from a notification rather than from a Bitbucket webhook.
+     */
+    public boolean isNotification() {
+        return notifiedRepository != null;
+    }
+
+    /**
+     * Extracts {@code owner/slug} from a repository URL such as {@code https://host/scm/PROJ/slug.git}
+     * or {@code git@host:owner/slug.git}.
+     */
+    static String repositoryOf(String url) {
+        String path = url.replaceFirst("\\.git/?$", "").replaceFirst("/+$", "");
+        String[] segments = path.split("[/:]");
+        if (segments.length < 2) {
+            return path;
+        }
+        return segments[segments.length - 2] + "/" + segments[segments.length - 1];
     }
 
     @Nonnull
@@ -27,38 +194,218 @@ public class BitBucketPayload extends InvisibleAction implements EnvironmentCont
         return payload;
     }
 
-    @Override
-    public void buildEnvVars(AbstractBuild<?, ?> abstractBuild, EnvVars envVars) {
-        final String payload = getPayload();
-        LOGGER.log(Level.FINEST, "Injecting BITBUCKET_PAYLOAD: {0}", payload);
-        envVars.put("BITBUCKET_PAYLOAD", payload);
+    /**
+     * Whether the payload is handed to the build as a file rather than through $BITBUCKET_PAYLOAD.
+     */
+    public boolean isAsFile() {
+        return asFile;
+    }
 
-        JSONObject JSONPayload = JSONObject.fromObject(payload);
-        if (JSONPayload.has("repository")) {
-            envVars.put("REPOSITORY", JSONPayload.getJSONObject("repository").getString("name"));
+    /**
+     * Returns the path, on the node running the build, of the file holding the payload once it has been written.
+     */
+    @CheckForNull
+    public String getFile() {
+        return file;
+    }
+
+    void setFile(@CheckForNull String file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the parsed payload, parsing it on first use.
+     */
+    @Nonnull
+    public JSONObject getJSON() {
+        if (json == null) {
+            json = payload.isEmpty() ? new JSONObject() : JSONObject.fromObject(payload);
         }
-        if (JSONPayload.has("actor")) {
-            envVars.put("AUTHOR", JSONPayload.getJSONObject("actor").getString("nickname"));
+        return json;
+    }
+
+    /**
+     * Returns the repository the event comes from, as {@code owner/slug} or {@code PROJECT/slug}.
+     */
+    @CheckForNull
+    public String getRepository() {
+        if (notifiedRepository != null) {
+            return notifiedRepository;
+        }
+        JSONObject payload = getJSON();
+        JSONObject repo = payload.optJSONObject("repository");
+        if (repo == null && payload.has("pullRequest")) {
+            repo = payload.getJSONObject("pullRequest").getJSONObject("toRef").optJSONObject("repository");
+        }
+        if (repo == null || repo.isNullObject()) {
+            return null;
+        }
+        if (repo.has("full_name")) {
+            return repo.getString("full_name");
+        }
+        if (repo.has("fullName")) {
+            return repo.getString("fullName");
+        }
+        if (repo.has("project") && repo.has("slug")) {
+            return repo.getJSONObject("project").getString("key") + "/" + repo.getString("slug");
         }
-        if (JSONPayload.has("push")) {
-            for (Object changes : JSONPayload.getJSONObject("push").getJSONArray("changes")) {
+        if (repo.has("absolute_url")) {
+            return repo.getString("absolute_url");
+        }
+        return repo.optString("name", null);
+    }
+
+    /**
+     * Returns the branch the event is about: the last pushed branch, the destination of a merged pull request or the
+     * source of any other pull request. {@code null} when the payload does not name it.
+     */
+    @CheckForNull
+    public String getBranch() {
+        if (notifiedRepository != null) {
+            return notifiedBranch;
+        }
+        JSONObject payload = getJSON();
+        String branch = null;
+        if (payload.has("push")) {
+            for (Object changes : payload.getJSONObject("push").getJSONArray("changes")) {
                 if (changes instanceof JSONObject) {
                     JSONObject item = (JSONObject) changes;
-                    if (item.has("new")) {
-                        envVars.put("BRANCH", item.getJSONObject("new").getString("name"));
+                    if (item.optJSONObject("new") != null && !item.getJSONObject("new").isNullObject()) {
+                        branch = item.getJSONObject("new").optString("name", null);
                     }
                 }
+            }
+        } else if (payload.has("changes")) {
+            for (Object changes : payload.getJSONArray("changes")) {
+                JSONObject ref = changes instanceof JSONObject ? ((JSONObject) changes).optJSONObject("ref") : null;
+                if (ref != null && !ref.isNullObject()) {
+                    branch = ref.optString("displayId", null);
+                }
+            }
+        } else if (payload.has("commits")) {
+            for (Object commit : payload.getJSONArray("commits")) {
+                if (commit instanceof JSONObject && ((JSONObject) commit).has("branch")) {
+                    branch = ((JSONObject) commit).optString("branch", null);
+                }
+            }
+        }
+        if (payload.has("pullrequest")) {
+            JSONObject pullRequest = payload.getJSONObject("pullrequest");
+            boolean merged = "MERGED".equals(pullRequest.optString("state"));
+            JSONObject side = pullRequest.optJSONObject(merged ? "destination" : "source");
+            JSONObject ref = side != null && !side.isNullObject() ? side.optJSONObject("branch") : null;
+            branch = ref != null && !ref.isNullObject() ? ref.optString("name", null) : null;
+        } else if (payload.has("pullRequest")) {
+            JSONObject pullRequest = payload.getJSONObject("pullRequest");
+            boolean merged = "MERGED".equals(pullRequest.optString("state"));
+            JSONObject ref = pullRequest.optJSONObject(merged ? "toRef" : "fromRef");
+            branch = ref != null && !ref.isNullObject() ? ref.optString("displayId", null) : null;
+        }
+        return branch;
+    }
+
+    /**
+     * Returns the commit the event is about: the last pushed commit or the source commit of a pull request.
+     */
+    @CheckForNull
+    public String getCommit() {
+        if (notifiedRepository != null) {
+            return notifiedCommit;
+        }
+        JSONObject payload = getJSON();
+        String commit = null;
+        if (payload.has("push")) {
+            for (Object changes : payload.getJSONObject("push").getJSONArray("changes")) {
+                JSONObject item = changes instanceof JSONObject ? ((JSONObject) changes).optJSONObject("new") : null;
+                if (item != null && !item.isNullObject() && item.optJSONObject("target") != null) {
+                    commit = item.getJSONObject("target").optString("hash", null);
+                }
+            }
+        } else if (payload.has("changes")) {
+            for (Object changes : payload.getJSONArray("changes")) {
+                if (changes instanceof JSONObject && ((JSONObject) changes).has("toHash")) {
+                    commit = ((JSONObject) changes).getString("toHash");
+                }
+            }
+        } else if (payload.has("commits")) {
+            for (Object item : payload.getJSONArray("commits")) {
+                if (item instanceof JSONObject && ((JSONObject) item).has("raw_node")) {
+                    commit = ((JSONObject) item).getString("raw_node");
+                }
+            }
+        } else if (payload.has("pullrequest")) {
+            JSONObject source = payload.getJSONObject("pullrequest").optJSONObject("source");
+            if (source != null && source.optJSONObject("commit") != null) {
+                commit = source.getJSONObject("commit").optString("hash", null);
+            }
+        } else if (payload.has("pullRequest")) {
+            commit = payload.getJSONObject("pullRequest").getJSONObject("fromRef").optString("latestCommit", null);
+        }
+        return commit;
+    }
 
+    /**
+     * Returns the type of the event: the event key sent by Bitbucket Server, {@code repo:push} or
+     * {@code pullrequest:<state>} for Bitbucket Cloud, {@code push} for the old POST service,
+     * {@code notify} for notifications.
+     */
+    @CheckForNull
+    public String getEventType() {
+        if (notifiedRepository != null) {
+            return "notify";
+        }
+        JSONObject payload = getJSON();
+        if (payload.has("eventKey")) {
+            return payload.getString("eventKey");
+        }
+        if (payload.has("push")) {
+            return "repo:push";
+        }
+        if (payload.has("pullrequest")) {
+            return "pullrequest:" + payload.getJSONObject("pullrequest").optString("state", "").toLowerCase();
+        }
+        if (payload.has("commits")) {
+            return "push";
+        }
+        return null;
+    }
+
+    @Override
+    public void buildEnvVars(AbstractBuild<?, ?> abstractBuild, EnvVars envVars) {
+        if (asFile) {
+            if (file != null) {
+                envVars.put("BITBUCKET_PAYLOAD_FILE", file);
             }
+        } else if (!isNotification()) {
+            final String payload = getPayload();
+            LOGGER.log(Level.FINEST, "Injecting BITBUCKET_PAYLOAD: {0}", payload);
+            envVars.put("BITBUCKET_PAYLOAD", payload);
         }
-        if (JSONPayload.has("pullrequest")) {
-            if (JSONPayload.getJSONObject("pullrequest").getString("state") == "MERGED") {
-                envVars.put("BRANCH", JSONPayload
-                                .getJSONObject("pullrequest")
-                                .getJSONObject("destination")
-                                .getJSONObject("branch")
-                                .getString("name"));
+        buildProjectedEnvVars(envVars);
+    }
+
+    /**
+     * Adds the small fields projected from the payload: $REPOSITORY, $AUTHOR and $BRANCH.
+     */
+    void buildProjectedEnvVars(EnvVars envVars) {
+        if (isNotification()) {
+            envVars.put("REPOSITORY", notifiedRepository.substring(notifiedRepository.lastIndexOf('/') + 1));
+            if (notifiedBranch != null) {
+                envVars.put("BRANCH", notifiedBranch);
             }
+            return;
+        }
+        JSONObject JSONPayload = getJSON();
+        if (JSONPayload.has("repository")) {
+            envVars.put("REPOSITORY", JSONPayload.getJSONObject("repository").getString("name"));
+        }
+        if (JSONPayload.has("actor")) {
+            JSONObject actor = JSONPayload.getJSONObject("actor");
+            envVars.put("AUTHOR", actor.optString("nickname", actor.optString("name")));
+        }
+        String branch = getBranch();
+        if (branch != null) {
+            envVars.put("BRANCH", branch);
         }
     }
 
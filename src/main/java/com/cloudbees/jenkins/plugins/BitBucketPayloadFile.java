@@ -0,0 +1,79 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Environment;
+import hudson.model.EnvironmentContributor;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the payload of a build in file mode once, into the temporary directory next to its workspace,
+ * instead of copying it into the environment of every process the build spawns. The file is removed
+ * when the build ends.
+ */
+@Extension
+public class BitBucketPayloadFile extends RunListener<AbstractBuild> {
+
+    public static final String FILE_NAME = "bitbucket-payload.json";
+
+    @Override
+    public Environment setUpEnvironment(AbstractBuild build, Launcher launcher, BuildListener listener)
+            throws IOException, InterruptedException {
+        final BitBucketPayload payload = build.getAction(BitBucketPayload.class);
+        FilePath workspace = build.getWorkspace();
+        if (payload == null || !payload.isAsFile() || workspace == null) {
+            return new Environment() {};
+        }
+        FilePath tmp = workspace.sibling(workspace.getName() + "@tmp");
+        if (tmp == null) {
+            return new Environment() {};
+        }
+        tmp.mkdirs();
+        final FilePath file = tmp.child(FILE_NAME);
+        file.write(payload.getPayload(), "UTF-8");
+        payload.setFile(file.getRemote());
+        return new Environment() {
+            @Override
+            public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
+                try {
+                    file.delete();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to delete " + file, e);
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Contributes the small fields projected from the payload to builds which are not {@link AbstractBuild}s,
+     * such as Pipeline runs. The payload itself is available through the {@code bitbucketPayload} step.
+     */
+    @Extension
+    public static class ProjectedFields extends EnvironmentContributor {
+        @Override
+        public void buildEnvironmentFor(@Nonnull Run r, @Nonnull EnvVars envs, @Nonnull TaskListener listener) {
+            if (r instanceof AbstractBuild) {
+                // already contributed by BitBucketPayload itself
+                return;
+            }
+            BitBucketPayload payload = r.getAction(BitBucketPayload.class);
+            if (payload != null) {
+                payload.buildProjectedEnvVars(envs);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitBucketPayloadFile.class.getName());
+}
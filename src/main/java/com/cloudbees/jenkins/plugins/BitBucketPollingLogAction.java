@@ -0,0 +1,81 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.Extension;
+import hudson.console.AnnotatedLargeText;
+import hudson.model.Action;
+import hudson.model.Run;
+import jenkins.model.TransientActionFactory;
+import org.apache.commons.jelly.XMLOutput;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Shows the log of the polling which started a build, read from the {@link BitbucketPollingLogStore} only when
+ * the page is opened.
+ */
+public class BitBucketPollingLogAction implements Action {
+
+    private final Run<?, ?> run;
+    private final BitBucketPushCause cause;
+
+    BitBucketPollingLogAction(Run<?, ?> run, BitBucketPushCause cause) {
+        this.run = run;
+        this.cause = cause;
+    }
+
+    public Run<?, ?> getOwner() {
+        return run;
+    }
+
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    public String getDisplayName() {
+        return "BitBucket Polling Log";
+    }
+
+    public String getUrlName() {
+        return "bitbucketPollingLog";
+    }
+
+    /**
+     * Returns the polling log, or {@code null} if it is no longer retained.
+     */
+    public File getLogFile() {
+        return cause.getPollingLogFile(run.getParent());
+    }
+
+    /**
+     * Writes the annotated log to the given output.
+     */
+    public void writeLogTo(XMLOutput out) throws IOException {
+        File file = getLogFile();
+        if (file != null) {
+            new AnnotatedLargeText<BitBucketPollingLogAction>(file, Charset.defaultCharset(), true, this).writeHtmlTo(0, out.asWriter());
+        }
+    }
+
+    @Extension
+    public static class Factory extends TransientActionFactory<Run> {
+        @Override
+        public Class<Run> type() {
+            return Run.class;
+        }
+
+        @Nonnull
+        @Override
+        public Collection<? extends Action> createFor(@Nonnull Run target) {
+            BitBucketPushCause cause = (BitBucketPushCause) target.getCause(BitBucketPushCause.class);
+            if (cause == null || cause.getPollingRecord() == 0) {
+                return Collections.emptyList();
+            }
+            return Collections.singleton(new BitBucketPollingLogAction(target, cause));
+        }
+    }
+}
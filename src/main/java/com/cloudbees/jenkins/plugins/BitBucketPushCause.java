@@ -1,34 +1,118 @@
 package com.cloudbees.jenkins.plugins;
 
+import hudson.diagnosis.OldDataMonitor;
+import hudson.model.Job;
+import hudson.model.Run;
 import hudson.triggers.SCMTrigger;
+import org.apache.commons.io.FileUtils;
 
+import javax.annotation.CheckForNull;
 import java.io.File;
 import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
+ * Cause of the builds started by a BitBucket push.
+ * <p>
+ * The cause does not carry the polling log: it only holds the id of the polling record in the
+ * {@link BitbucketPollingLogStore} of the job, which is read when the log is displayed.
+ *
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
  */
 public class BitBucketPushCause extends SCMTrigger.SCMTriggerCause {
 
     private String pushedBy;
+    private long pollingRecord;
+
+    /**
+     * Polling log text of the builds recorded before the polling record id was introduced, moved out on load.
+     */
+    private String pollingLog;
 
     public BitBucketPushCause(String pusher) {
         this("", pusher);
     }
-    
+
     public BitBucketPushCause(String pollingLog, String pusher) {
         super(pollingLog);
         pushedBy = pusher;
     }
 
+    /**
+     * @param pollingRecord id of the polling record in the {@link BitbucketPollingLogStore} of the job
+     */
+    public BitBucketPushCause(long pollingRecord, String pusher) {
+        // no polling log text, SCMTriggerCause has nothing to write
+        super((String) null);
+        this.pushedBy = pusher;
+        this.pollingRecord = pollingRecord;
+    }
+
+    /**
+     * @deprecated copies the whole polling log into the cause, use {@link #BitBucketPushCause(long, String)}
+     */
+    @Deprecated
     public BitBucketPushCause(File pollingLog, String pusher) throws IOException {
         super(pollingLog);
         pushedBy = pusher;
     }
 
+    /**
+     * Returns the id of the polling record, 0 if the build predates polling records.
+     */
+    public long getPollingRecord() {
+        return pollingRecord;
+    }
+
+    /**
+     * Returns the log of the polling which started the build, if it is still retained.
+     */
+    @CheckForNull
+    public File getPollingLogFile(Job<?, ?> job) {
+        if (pollingRecord == 0) {
+            return null;
+        }
+        File file = BitbucketPollingLogStore.of(job).getFile(pollingRecord);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Builds started from a polling record have no polling log of their own: the log stays in the store and is shown
+     * by {@link BitBucketPollingLogAction}, so the polling.log file and action of SCMTriggerCause are skipped.
+     */
+    @Override
+    public void onAddedTo(Run build) {
+        if (pollingRecord == 0) {
+            super.onAddedTo(build);
+        }
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> build) {
+        if (pollingRecord == 0) {
+            super.onLoad(build);
+        }
+        if (pollingLog != null) {
+            // move the log of an old build record out of build.xml, next to it as SCMTrigger does
+            File file = new File(build.getRootDir(), "polling.log");
+            try {
+                if (!file.exists()) {
+                    FileUtils.writeStringToFile(file, pollingLog);
+                }
+                pollingLog = null;
+                OldDataMonitor.report(build, "1.3.4");
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to move the polling log of " + build, e);
+            }
+        }
+    }
+
     @Override
     public String getShortDescription() {
         String pusher = pushedBy != null ? pushedBy : "";
         return "Started by BitBucket push by " + pusher;
     }
+
+    private static final Logger LOGGER = Logger.getLogger(BitBucketPushCause.class.getName());
 }
@@ -4,27 +4,35 @@ import hudson.Extension;
 import hudson.Util;
 import hudson.console.AnnotatedLargeText;
 import hudson.model.*;
-import hudson.model.queue.QueueTaskFuture;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
-import hudson.util.SequentialExecutionQueue;
 import hudson.util.StreamTaskListener;
+import jenkins.model.CauseOfInterruption;
+import jenkins.model.Jenkins;
 import jenkins.model.ParameterizedJobMixIn;
 import jenkins.triggers.SCMTriggerItem;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
 import org.apache.commons.jelly.XMLOutput;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
-import sun.awt.windows.ThemeReader;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.concurrent.ExecutionException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -39,10 +47,157 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
 
     private transient final static ReentrantLock lock = new ReentrantLock();
 
+    private String includedPaths;
+    private String excludedPaths;
+    private boolean supersedeBuilds;
+    private boolean abortSupersededBuilds;
+    private boolean payloadAsFile;
+    private boolean splitChanges;
+
     @DataBoundConstructor
     public BitBucketTrigger() {
     }
 
+    /**
+     * Patterns of the paths which have to change for a push to trigger a build, one per line.
+     */
+    public String getIncludedPaths() {
+        return includedPaths;
+    }
+
+    @DataBoundSetter
+    public void setIncludedPaths(String includedPaths) {
+        this.includedPaths = Util.fixEmptyAndTrim(includedPaths);
+    }
+
+    /**
+     * Patterns of the paths which never trigger a build when they are the only ones to change, one per line.
+     */
+    public String getExcludedPaths() {
+        return excludedPaths;
+    }
+
+    @DataBoundSetter
+    public void setExcludedPaths(String excludedPaths) {
+        this.excludedPaths = Util.fixEmptyAndTrim(excludedPaths);
+    }
+
+    /**
+     * Whether a push removes the queued builds of older pushes to the same repository and branch.
+     */
+    public boolean isSupersedeBuilds() {
+        return supersedeBuilds;
+    }
+
+    @DataBoundSetter
+    public void setSupersedeBuilds(boolean supersedeBuilds) {
+        this.supersedeBuilds = supersedeBuilds;
+    }
+
+    /**
+     * Whether superseding also aborts the running builds of older pushes to the same repository and branch.
+     */
+    public boolean isAbortSupersededBuilds() {
+        return abortSupersededBuilds;
+    }
+
+    @DataBoundSetter
+    public void setAbortSupersededBuilds(boolean abortSupersededBuilds) {
+        this.abortSupersededBuilds = abortSupersededBuilds;
+    }
+
+    /**
+     * Whether the payload is handed to builds as a file ($BITBUCKET_PAYLOAD_FILE) instead of $BITBUCKET_PAYLOAD.
+     */
+    public boolean isPayloadAsFile() {
+        return payloadAsFile;
+    }
+
+    @DataBoundSetter
+    public void setPayloadAsFile(boolean payloadAsFile) {
+        this.payloadAsFile = payloadAsFile;
+    }
+
+    /**
+     * Whether a push of several branches or tags builds once per change instead of once.
+     */
+    public boolean isSplitChanges() {
+        return splitChanges;
+    }
+
+    @DataBoundSetter
+    public void setSplitChanges(boolean splitChanges) {
+        this.splitChanges = splitChanges;
+    }
+
+    /**
+     * Cancels the queued builds, and optionally aborts the running builds, started by an older push to the same
+     * repository and branch as the given payload.
+     * <p>
+     * While superseding is on, pushes are kept apart (see {@link BitBucketPayload#keptApart()}), so a queued build of
+     * that branch never carries a folded push to another branch.
+     */
+    void supersede(BitBucketPayload payload) {
+        String branch = payload.getBranch();
+        if (branch == null) {
+            return;
+        }
+        String repository = payload.getRepository();
+        Jenkins jenkins = Jenkins.getInstance();
+        if (job instanceof Queue.Task) {
+            Queue queue = jenkins.getQueue();
+            for (Queue.Item item : queue.getItems((Queue.Task) job)) {
+                if (isSameBranch(item.getCauses(), item.getAction(BitBucketPayload.class), repository, branch)) {
+                    LOGGER.info("Cancelling queued build of " + job.getName() + " superseded by a newer push to " + branch);
+                    queue.cancel(item);
+                }
+            }
+        }
+        if (abortSupersededBuilds) {
+            for (Computer computer : jenkins.getComputers()) {
+                List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
+                executors.addAll(computer.getOneOffExecutors());
+                for (Executor executor : executors) {
+                    Queue.Executable executable = executor.getCurrentExecutable();
+                    if (executable instanceof Run && ((Run) executable).getParent() == job) {
+                        Run<?, ?> run = (Run<?, ?>) executable;
+                        if (isSameBranch(run.getCauses(), run.getAction(BitBucketPayload.class), repository, branch)) {
+                            LOGGER.info("Aborting " + run.getFullDisplayName() + " superseded by a newer push to " + branch);
+                            executor.interrupt(Result.ABORTED, new SupersededInterruption(branch));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isSameBranch(List<Cause> causes, BitBucketPayload payload, String repository, String branch) {
+        if (payload == null) {
+            return false;
+        }
+        boolean pushed = false;
+        for (Cause cause : causes) {
+            pushed |= cause instanceof BitBucketPushCause;
+        }
+        return pushed && branch.equals(payload.getBranch())
+                && (repository == null ? payload.getRepository() == null : repository.equalsIgnoreCase(payload.getRepository()));
+    }
+
+    /**
+     * Tells if the event changed at least one path matching the included and excluded paths.
+     * Events whose changed paths cannot be determined are always relevant.
+     */
+    public boolean isRelevant(BitBucketPayload payload) {
+        if (includedPaths == null && excludedPaths == null) {
+            return true;
+        }
+        Set<String> paths = BitbucketChangedPaths.of(job, payload.getJSON());
+        if (paths == null) {
+            return true;
+        }
+        return BitbucketChangedPaths.isRelevant(paths, includedPaths, excludedPaths);
+    }
+
     /**
      * Called when a POST is made.
      */
@@ -55,19 +210,44 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
      * Called when a POST is made.
      */
     public void onPost(String triggeredByUser, final String payload) {
+        onPost(triggeredByUser, new BitBucketPayload(payload));
+    }
+
+    /**
+     * Called when a webhook or a notification is received.
+     */
+    public void onPost(String triggeredByUser, BitBucketPayload payload) {
+        List<BitBucketPayload> changes = splitChanges ? payload.split() : Collections.singletonList(payload);
+        if (changes.size() > 1) {
+            LOGGER.info("Splitting a push of " + changes.size() + " changes for " + job.getName());
+        }
+        enqueue(triggeredByUser, changes);
+    }
+
+    /**
+     * Queues the polling of the job and the scheduling of a build for every change of the event, as one task served
+     * in the lane the event was received in, with the highest priority of the changes.
+     */
+    private void enqueue(String triggeredByUser, final List<BitBucketPayload> changes) {
         final String pushBy = triggeredByUser;
-        while (getDescriptor().queue.getInProgress().size() > 0){
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        final String lane = changes.get(0).getLane();
+        BitbucketPriorityRule rule = null;
+        for (BitBucketPayload change : changes) {
+            BitbucketPriorityRule candidate = getDescriptor().getPriorityRule(change);
+            if (candidate != null && (rule == null || candidate.getPriority() > rule.getPriority())) {
+                rule = candidate;
             }
         }
+        final String priorityClass = rule != null ? rule.getName() : DEFAULT_PRIORITY_CLASS;
+        final int priority = rule != null ? rule.getPriority() : 0;
 
         getDescriptor().queue.execute(new Runnable() {
-            private boolean runPolling() {
+            /**
+             * Polls and tells if the polling succeeded in time.
+             */
+            private boolean runPolling(File log) {
                 try {
-                    StreamTaskListener listener = new StreamTaskListener(getLogFile());
+                    PollingListener listener = new PollingListener(log);
 
                     try {
                         PrintStream logger = listener.getLogger();
@@ -75,11 +255,18 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
                         logger.println("Started on " + DateFormat.getDateTimeInstance().format(new Date()));
                         boolean result = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job).poll(listener).hasChanges();
 
-                        logger.println("Done. Took " + Util.getTimeSpanString(System.currentTimeMillis() - start));
+                        long took = System.currentTimeMillis() - start;
+                        logger.println("Done. Took " + Util.getTimeSpanString(took));
                         if (result)
                             logger.println("Changes found");
                         else
                             logger.println("No changes");
+                        int slowPollSeconds = getDescriptor().getSlowPollSeconds();
+                        if (slowPollSeconds > 0 && took > slowPollSeconds * 1000L) {
+                            logger.println("Polling took longer than " + slowPollSeconds + " seconds");
+                            return false;
+                        }
+                        return !listener.failed;
                     } catch (Error | Exception e) {
                         e.printStackTrace(listener.error("Failed to record SCM polling"));
                         LOGGER.log(Level.SEVERE, "Failed to record SCM polling", e);
@@ -90,43 +277,107 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
                 } catch (IOException e) {
                     LOGGER.log(Level.SEVERE, "Failed to record SCM polling", e);
                 }
-                return true;
+                return false;
             }
 
+            /**
+             * The changes worth a build, decided once: a parked event does not diff its paths again.
+             */
+            private List<BitBucketPayload> relevant;
+
             public void run() {
+                assert job != null;
+                final Runnable self = this;
+                if (relevant == null) {
+                    // path relevance may fetch into a mirror, which must not hold a polling slot of the host
+                    relevant = new ArrayList<BitBucketPayload>();
+                    for (BitBucketPayload change : changes) {
+                        if (isRelevant(change)) {
+                            relevant.add(change);
+                        } else {
+                            LOGGER.info("No relevant path changed for " + job.getName() + ". Skipping the build of "
+                                    + change.getBranch());
+                            BitbucketLastSeenHashes.record(job, change);
+                        }
+                    }
+                }
+                if (relevant.isEmpty()) {
+                    return;
+                }
+                // the changes of an event are all pushes to the same repository
+                String host = BitbucketHostThrottle.hostOf(job, relevant.get(0).getRepository());
+                BitbucketHostThrottle throttle = getDescriptor().getThrottle();
+                if (!throttle.tryAcquire(host, new Runnable() {
+                    public void run() {
+                        getDescriptor().queue.execute(self, lane, priorityClass, priority);
+                    }
+                })) {
+                    LOGGER.info("Polling of " + host + " is throttled, parked the event for " + job.getName());
+                    return;
+                }
+                // one polling serves every change, the job polls all its branches anyway
+                long pollingRecord;
+                boolean polled = false;
                 try {
-                    runPolling();
-                    assert job != null;
+                    pollingRecord = BitbucketPollingLogStore.of(job).newRecord();
+                    polled = runPolling(BitbucketPollingLogStore.of(job).getFile(pollingRecord));
+                } finally {
+                    throttle.release(host, polled);
+                }
+                ParameterizedJobMixIn pJob = new ParameterizedJobMixIn() {
+                    @Override
+                    protected Job asJob() {
+                        return job;
+                    }
+                };
+                for (BitBucketPayload change : relevant) {
                     String name = " #" + job.getNextBuildNumber();
-                    BitBucketPushCause cause;
-                    try {
-                        cause = new BitBucketPushCause(getLogFile(), pushBy);
-                    } catch (IOException e) {
-                        LOGGER.log(Level.WARNING, "Failed to parse the polling log", e);
-                        cause = new BitBucketPushCause(pushBy);
+                    BitBucketPushCause cause = new BitBucketPushCause(pollingRecord, pushBy);
+                    BitBucketPayload bitBucketPayload = change.withAsFile(payloadAsFile);
+                    if (supersedeBuilds) {
+                        supersede(bitBucketPayload);
+                        // a queued build of another branch must not carry this push, it could be superseded
+                        bitBucketPayload = bitBucketPayload.keptApart();
                     }
-                    ParameterizedJobMixIn pJob = new ParameterizedJobMixIn() {
-                        @Override
-                        protected Job asJob() {
-                            return job;
-                        }
-                    };
-                    BitBucketPayload bitBucketPayload = new BitBucketPayload(payload);
-                    LOGGER.info("Schedule " + job.getName());
-                    QueueTaskFuture queueTaskFuture = pJob.scheduleBuild2(5, new CauseAction(cause), bitBucketPayload);
-                    assert queueTaskFuture != null;
-                    if (pJob.scheduleBuild(cause)) {
-                        LOGGER.info("SCM changes detected in " + job.getName() + ". Triggering " + name);
-                    } else {
-                        LOGGER.info("SCM changes detected in " + job.getName() + ". Job is already in the queue");
+                    if (pJob.scheduleBuild2(5, new CauseAction(cause), bitBucketPayload) == null) {
+                        LOGGER.info("SCM changes detected in " + job.getName() + ", which cannot be built");
+                        continue;
                     }
-                    queueTaskFuture.waitForStart();
-                } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
+                    LOGGER.info("SCM changes detected in " + job.getName() + ". Triggering " + name
+                            + " unless a build of " + change.getBranch() + " is already in the queue");
+                    // the queued build survives a restart, so the commit counts as processed
+                    BitbucketLastSeenHashes.record(job, change);
                 }
+                // not waiting for the builds to start: the next push to a branch must find its build still queued
+                // to supersede it, and the worker is free for the next event
             }
 
-        });
+        }, lane, priorityClass, priority);
+    }
+
+    /**
+     * Records whether the polling reported an error.
+     */
+    private static final class PollingListener extends StreamTaskListener {
+        private static final long serialVersionUID = 1L;
+
+        private transient boolean failed;
+
+        PollingListener(File log) throws IOException {
+            super(log);
+        }
+
+        @Override
+        public PrintWriter error(String msg) {
+            failed = true;
+            return super.error(msg);
+        }
+
+        @Override
+        public PrintWriter fatalError(String msg) {
+            failed = true;
+            return super.fatalError(msg);
+        }
     }
 
     @Override
@@ -138,15 +389,15 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
      * Returns the file that records the last/current polling activity.
      */
     public File getLogFile() {
-        return new File(job.getRootDir(), "bitbucket-polling.log");
+        File latest = BitbucketPollingLogStore.of(job).getLatest();
+        return latest != null ? latest : new File(job.getRootDir(), "bitbucket-polling.log");
     }
 
     /**
-     * Check if "bitbucket-polling.log" already exists to initialize it
+     * Check if a polling log already exists to initialize it
      */
     public boolean IsLogFileInitialized() {
-        File file = new File(job.getRootDir(), "bitbucket-polling.log");
-        return file.exists();
+        return getLogFile().exists();
     }
 
     @Override
@@ -183,10 +434,189 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
         }
     }
 
+    /**
+     * Records that a build was aborted because a newer push to the same branch was scheduled.
+     */
+    public static final class SupersededInterruption extends CauseOfInterruption {
+        private static final long serialVersionUID = 1L;
+
+        private final String branch;
+
+        public SupersededInterruption(String branch) {
+            this.branch = branch;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Superseded by a newer BitBucket push to " + branch;
+        }
+    }
+
     @Extension
     @Symbol("bitbucketPush")
     public static class DescriptorImpl extends TriggerDescriptor {
-        private transient final SequentialExecutionQueue queue = new SequentialExecutionQueue(Hudson.MasterComputer.threadPoolForRemoting);
+        private transient final BitbucketTriggerQueue queue = new BitbucketTriggerQueue(Hudson.MasterComputer.threadPoolForRemoting);
+
+        private transient final BitbucketHostThrottle throttle = new BitbucketHostThrottle(Timer.get());
+
+        private transient final BitbucketIngestionLanes ingestionLanes = new BitbucketIngestionLanes();
+
+        private int workers = 1;
+        private int agingSeconds = 30;
+        private List<BitbucketPriorityRule> priorityRules = new ArrayList<BitbucketPriorityRule>();
+        private int maxPollsPerHost;
+        private int failureThreshold = 5;
+        private int openSeconds = 60;
+        private int releaseIntervalMillis = 1000;
+        private int slowPollSeconds;
+        private boolean catchUp;
+        private int catchUpWindowSeconds = 300;
+        private int catchUpConcurrency = 2;
+        private List<BitbucketLane> lanes = new ArrayList<BitbucketLane>();
+
+        public DescriptorImpl() {
+            load();
+            queue.configure(workers, agingSeconds * 1000L, getLaneWorkers());
+            throttle.configure(maxPollsPerHost, failureThreshold, openSeconds * 1000L, releaseIntervalMillis);
+            ingestionLanes.configure(getLanes());
+        }
+
+        /**
+         * Number of events of a lane polled and scheduled at the same time, for the lanes which are not configured.
+         */
+        public int getWorkers() {
+            return workers;
+        }
+
+        /**
+         * Seconds of waiting after which a queued event is served as if it had one more level of priority.
+         */
+        public int getAgingSeconds() {
+            return agingSeconds;
+        }
+
+        public List<BitbucketPriorityRule> getPriorityRules() {
+            return priorityRules != null ? priorityRules : Collections.<BitbucketPriorityRule>emptyList();
+        }
+
+        /**
+         * Returns the first priority rule matching the event, if any.
+         */
+        public BitbucketPriorityRule getPriorityRule(BitBucketPayload payload) {
+            for (BitbucketPriorityRule rule : getPriorityRules()) {
+                if (rule.matches(payload)) {
+                    return rule;
+                }
+            }
+            return null;
+        }
+
+        public BitbucketTriggerQueue getQueue() {
+            return queue;
+        }
+
+        /**
+         * Maximum number of concurrent pollings of a remote host, 0 for no limit.
+         */
+        public int getMaxPollsPerHost() {
+            return maxPollsPerHost;
+        }
+
+        /**
+         * Consecutive failed or slow pollings of a host after which its events are parked, 0 to never park them.
+         */
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+
+        /**
+         * Seconds the events of a failing host stay parked before a single one probes the host again.
+         */
+        public int getOpenSeconds() {
+            return openSeconds;
+        }
+
+        /**
+         * Interval between the release of two parked events once their host recovered.
+         */
+        public int getReleaseIntervalMillis() {
+            return releaseIntervalMillis;
+        }
+
+        /**
+         * Pollings taking longer than this many seconds count as failures, 0 to disable.
+         */
+        public int getSlowPollSeconds() {
+            return slowPollSeconds;
+        }
+
+        public BitbucketHostThrottle getThrottle() {
+            return throttle;
+        }
+
+        /**
+         * Limits of the ingestion lanes which do not use the default ones.
+         */
+        public List<BitbucketLane> getLanes() {
+            return lanes != null ? lanes : Collections.<BitbucketLane>emptyList();
+        }
+
+        public BitbucketIngestionLanes getIngestionLanes() {
+            return ingestionLanes;
+        }
+
+        /**
+         * Returns the workers of the configured lanes, which also bound their share of the trigger queue.
+         */
+        private Map<String, Integer> getLaneWorkers() {
+            Map<String, Integer> laneWorkers = new HashMap<String, Integer>();
+            for (BitbucketLane lane : getLanes()) {
+                laneWorkers.put(lane.getName(), lane.getWorkers());
+            }
+            return laneWorkers;
+        }
+
+        /**
+         * Whether the pushes received while Jenkins was down are caught up after a restart.
+         */
+        public boolean isCatchUp() {
+            return catchUp;
+        }
+
+        /**
+         * Seconds over which the catch-up comparisons are spread after a restart.
+         */
+        public int getCatchUpWindowSeconds() {
+            return catchUpWindowSeconds;
+        }
+
+        /**
+         * Maximum number of jobs compared with their remotes at the same time during the catch-up.
+         */
+        public int getCatchUpConcurrency() {
+            return catchUpConcurrency;
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            workers = Math.max(1, json.optInt("workers", 1));
+            agingSeconds = Math.max(0, json.optInt("agingSeconds", 30));
+            priorityRules = req.bindJSONToList(BitbucketPriorityRule.class, json.opt("priorityRules"));
+            maxPollsPerHost = Math.max(0, json.optInt("maxPollsPerHost", 0));
+            failureThreshold = Math.max(0, json.optInt("failureThreshold", 5));
+            openSeconds = Math.max(1, json.optInt("openSeconds", 60));
+            releaseIntervalMillis = Math.max(0, json.optInt("releaseIntervalMillis", 1000));
+            slowPollSeconds = Math.max(0, json.optInt("slowPollSeconds", 0));
+            catchUp = json.optBoolean("catchUp");
+            catchUpWindowSeconds = Math.max(0, json.optInt("catchUpWindowSeconds", 300));
+            catchUpConcurrency = Math.max(1, json.optInt("catchUpConcurrency", 2));
+            lanes = req.bindJSONToList(BitbucketLane.class, json.opt("lanes"));
+            save();
+            queue.configure(workers, agingSeconds * 1000L, getLaneWorkers());
+            throttle.configure(maxPollsPerHost, failureThreshold, openSeconds * 1000L, releaseIntervalMillis);
+            ingestionLanes.configure(getLanes());
+            return true;
+        }
 
         @Override
         public boolean isApplicable(Item item) {
@@ -200,5 +630,7 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
         }
     }
 
+    static final String DEFAULT_PRIORITY_CLASS = "default";
+
     private static final Logger LOGGER = Logger.getLogger(BitBucketTrigger.class.getName());
 }
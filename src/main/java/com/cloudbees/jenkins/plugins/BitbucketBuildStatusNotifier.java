@@ -0,0 +1,340 @@
+package com.cloudbees.jenkins.plugins;
+
+import net.sf.json.JSONObject;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends build statuses to Bitbucket asynchronously, over a pool of persistent HTTP connections.
+ * <p>
+ * Statuses wait in a bounded queue where repeated updates of the same commit and key are coalesced: only the latest
+ * state is sent. Up to {@link #CONNECTIONS} statuses are delivered at the same time, but never two states of the same
+ * commit and key. Failed deliveries (connection errors, rate limiting, server errors) are retried with an exponential
+ * backoff unless a newer state of the same status has been submitted meanwhile, whether it is still queued or already
+ * delivered.
+ */
+public class BitbucketBuildStatusNotifier {
+
+    /**
+     * Base URL of the Bitbucket Cloud REST API.
+     */
+    public static final String CLOUD_API_URL = "https://api.bitbucket.org";
+
+    /**
+     * Maximum number of statuses delivered at the same time, which is also the size of the connection pool. The
+     * executor should have as many threads.
+     */
+    public static final int CONNECTIONS = 4;
+
+    private final String baseUrl;
+    private final boolean server;
+    private final @CheckForNull String authorization;
+    private final ScheduledExecutorService executor;
+    private final HttpClient client;
+    private final int capacity;
+    private final int maxAttempts;
+    private final long backoffMillis;
+
+    private final LinkedHashMap<String, Status> pending = new LinkedHashMap<String, Status>();
+    private final Set<String> delivering = new HashSet<String>();
+    private final Map<String, Long> generations = new HashMap<String, Long>();
+    private long sequence;
+    private int drains;
+    private int retries;
+    private boolean closing;
+
+    /**
+     * @param baseUrl URL of Bitbucket Server, or {@link #CLOUD_API_URL} for Bitbucket Cloud
+     * @param server whether the Bitbucket Server build status API is used rather than the Cloud one
+     * @param username user to authenticate as, {@code null} for anonymous requests
+     * @param password password or app password of the user
+     * @param executor runs the deliveries and schedules the retries, best with {@link #CONNECTIONS} threads
+     * @param capacity maximum number of statuses waiting to be sent
+     * @param maxAttempts maximum number of delivery attempts of a status
+     * @param backoffMillis delay before the first retry, doubled for every following one
+     */
+    public BitbucketBuildStatusNotifier(String baseUrl, boolean server, @CheckForNull String username, @CheckForNull String password,
+                                        ScheduledExecutorService executor, int capacity, int maxAttempts, long backoffMillis) {
+        this.baseUrl = baseUrl.replaceFirst("/+$", "");
+        this.server = server;
+        this.authorization = username != null
+                ? "Basic " + Base64.encodeBase64String((username + ":" + (password != null ? password : "")).getBytes(UTF8)).trim()
+                : null;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+
+        MultiThreadedHttpConnectionManager connections = new MultiThreadedHttpConnectionManager();
+        connections.getParams().setDefaultMaxConnectionsPerHost(CONNECTIONS);
+        connections.getParams().setMaxTotalConnections(CONNECTIONS);
+        connections.getParams().setConnectionTimeout(10000);
+        connections.getParams().setSoTimeout(30000);
+        this.client = new HttpClient(connections);
+    }
+
+    /**
+     * Queues a status, replacing any queued state of the same commit and key.
+     *
+     * @return {@code false} if the queue is full and the status has been dropped
+     */
+    public boolean submit(Status status) {
+        synchronized (pending) {
+            String id = status.getId();
+            if (!pending.containsKey(id) && pending.size() >= capacity) {
+                LOGGER.log(Level.WARNING, "Dropping the build status of {0}: {1} statuses are already waiting",
+                        new Object[]{status.commit, capacity});
+                return false;
+            }
+            Status submitted = status.inGeneration(++sequence);
+            generations.put(id, submitted.generation);
+            queue(submitted);
+            return true;
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on {@link #pending}.
+     */
+    private void queue(Status status) {
+        // replacing a queued status keeps its place in the queue
+        pending.put(status.getId(), status);
+        if (drains < CONNECTIONS) {
+            drains++;
+            executor.execute(new Drain());
+        }
+    }
+
+    /**
+     * Forgets the generation of a status whose delivery is over, unless a newer one has been submitted. Must be
+     * called while holding the lock on {@link #pending}.
+     */
+    private void delivered(Status status) {
+        Long generation = generations.get(status.getId());
+        if (generation != null && generation == status.generation) {
+            generations.remove(status.getId());
+        }
+    }
+
+    public int getPending() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Closes the pooled connections.
+     */
+    public void shutdown() {
+        ((MultiThreadedHttpConnectionManager) client.getHttpConnectionManager()).shutdown();
+    }
+
+    /**
+     * Closes the pooled connections once every queued status has been delivered or given up, retries included.
+     */
+    public void shutdownWhenIdle() {
+        synchronized (pending) {
+            closing = true;
+            closeIfIdle();
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on {@link #pending}.
+     */
+    private void closeIfIdle() {
+        if (closing && drains == 0 && retries == 0 && pending.isEmpty()) {
+            LOGGER.log(Level.FINE, "Closing the connections to {0}", baseUrl);
+            shutdown();
+        }
+    }
+
+    private final class Drain implements Runnable {
+        public void run() {
+            while (true) {
+                Status status = null;
+                synchronized (pending) {
+                    // the oldest status whose previous state is not being delivered by another drain
+                    for (Iterator<Map.Entry<String, Status>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                        Status next = it.next().getValue();
+                        if (!delivering.contains(next.getId())) {
+                            status = next;
+                            it.remove();
+                            break;
+                        }
+                    }
+                    if (status == null) {
+                        drains--;
+                        closeIfIdle();
+                        return;
+                    }
+                    delivering.add(status.getId());
+                }
+                try {
+                    deliver(status);
+                } finally {
+                    synchronized (pending) {
+                        delivering.remove(status.getId());
+                    }
+                }
+            }
+        }
+    }
+
+    private void deliver(final Status status) {
+        boolean retry;
+        try {
+            int code = post(status);
+            if (code / 100 == 2) {
+                LOGGER.log(Level.FINE, "Sent build status {0} of {1}", new Object[]{status.state, status.commit});
+                synchronized (pending) {
+                    delivered(status);
+                }
+                return;
+            }
+            retry = code == 429 || code / 100 == 5;
+            LOGGER.log(retry ? Level.FINE : Level.WARNING, "Bitbucket answered {0} to the build status of {1}",
+                    new Object[]{code, status.commit});
+        } catch (IOException e) {
+            retry = true;
+            LOGGER.log(Level.FINE, "Failed to send the build status of " + status.commit, e);
+        }
+        if (!retry || status.attempt + 1 >= maxAttempts) {
+            LOGGER.log(Level.WARNING, "Giving up sending the build status {0} of {1} after {2} attempt(s)",
+                    new Object[]{status.state, status.commit, status.attempt + 1});
+            synchronized (pending) {
+                delivered(status);
+            }
+            return;
+        }
+        long delay = backoffMillis << status.attempt;
+        synchronized (pending) {
+            retries++;
+        }
+        executor.schedule(new Runnable() {
+            public void run() {
+                synchronized (pending) {
+                    retries--;
+                    Long generation = generations.get(status.getId());
+                    if (generation == null || generation != status.generation) {
+                        // a newer state is waiting or has already been delivered
+                        closeIfIdle();
+                        return;
+                    }
+                    queue(status.nextAttempt());
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private int post(Status status) throws IOException {
+        String url = server
+                ? baseUrl + "/rest/build-status/1.0/commits/" + status.commit
+                : baseUrl + "/2.0/repositories/" + status.repository + "/commit/" + status.commit + "/statuses/build";
+        JSONObject body = new JSONObject()
+                .element("state", status.state)
+                .element("key", status.key)
+                .element("name", status.name)
+                .element("url", status.url)
+                .element("description", status.description != null ? status.description : "");
+        PostMethod post = new PostMethod(url);
+        try {
+            post.setRequestEntity(new StringRequestEntity(body.toString(), "application/json", UTF8));
+            if (authorization != null) {
+                post.setRequestHeader("Authorization", authorization);
+            }
+            int code = client.executeMethod(post);
+            // read the whole response so that the connection can be reused
+            InputStream response = post.getResponseBodyAsStream();
+            if (response != null) {
+                IOUtils.copy(response, IOUtils.NULL_OUTPUT_STREAM);
+            }
+            return code;
+        } finally {
+            post.releaseConnection();
+        }
+    }
+
+    /**
+     * A build status of a commit. Statuses with the same commit and key replace each other.
+     */
+    public static final class Status {
+        private final String repository;
+        private final String commit;
+        private final String key;
+        private final String state;
+        private final String name;
+        private final String url;
+        private final String description;
+        private final int attempt;
+        private final long generation;
+
+        /**
+         * @param repository {@code owner/slug} of the repository, used by Bitbucket Cloud only
+         * @param commit hash of the commit
+         * @param key identifies the status among the statuses of the commit
+         * @param state {@code INPROGRESS}, {@code SUCCESSFUL}, {@code FAILED} or {@code STOPPED} (Cloud only)
+         * @param name displayed name of the status
+         * @param url where the status links to
+         * @param description optional description
+         */
+        public Status(String repository, String commit, String key, String state, String name, String url,
+                      @CheckForNull String description) {
+            this(repository, commit, key, state, name, url, description, 0, 0);
+        }
+
+        private Status(String repository, String commit, String key, String state, String name, String url,
+                       String description, int attempt, long generation) {
+            this.repository = repository;
+            this.commit = commit;
+            this.key = key;
+            this.state = state;
+            this.name = name;
+            this.url = url;
+            this.description = description;
+            this.attempt = attempt;
+            this.generation = generation;
+        }
+
+        String getId() {
+            return commit + "/" + key;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        Status nextAttempt() {
+            return new Status(repository, commit, key, state, name, url, description, attempt + 1, generation);
+        }
+
+        /**
+         * Returns this status numbered as the given submission of its commit and key.
+         */
+        Status inGeneration(long generation) {
+            return new Status(repository, commit, key, state, name, url, description, attempt, generation);
+        }
+    }
+
+    private static final String UTF8 = "UTF-8";
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketBuildStatusNotifier.class.getName());
+}
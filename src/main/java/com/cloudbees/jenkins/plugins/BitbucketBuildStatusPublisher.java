@@ -0,0 +1,244 @@
+package com.cloudbees.jenkins.plugins;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernameListBoxModel;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.tasks.SimpleBuildStep;
+import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import javax.annotation.CheckForNull;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Reports the status of a build to the Bitbucket commit which triggered it, as known from its {@link BitBucketPayload}.
+ * <p>
+ * Without an explicit {@code state} the status follows the result of the build, {@code INPROGRESS} as long as it has
+ * none, as in a Pipeline run which has not finished. Statuses are sent in the background by the
+ * {@link BitbucketBuildStatusNotifier} of the descriptor, so the build never waits for Bitbucket.
+ */
+public class BitbucketBuildStatusPublisher extends Recorder implements SimpleBuildStep {
+
+    private String state;
+    private String key;
+    private String description;
+
+    @DataBoundConstructor
+    public BitbucketBuildStatusPublisher() {
+    }
+
+    /**
+     * {@code INPROGRESS}, {@code SUCCESSFUL} or {@code FAILED}, {@code null} to follow the result of the build.
+     */
+    public String getState() {
+        return state;
+    }
+
+    @DataBoundSetter
+    public void setState(String state) {
+        this.state = Util.fixEmptyAndTrim(state);
+    }
+
+    /**
+     * Key of the status among the statuses of the commit, the job by default.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    @DataBoundSetter
+    public void setKey(String key) {
+        this.key = Util.fixEmptyAndTrim(key);
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    @DataBoundSetter
+    public void setDescription(String description) {
+        this.description = Util.fixEmptyAndTrim(description);
+    }
+
+    @Override
+    public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) {
+        BitBucketPayload payload = run.getAction(BitBucketPayload.class);
+        String commit = payload != null ? payload.getCommit() : null;
+        String repository = payload != null ? payload.getRepository() : null;
+        if (commit == null || repository == null) {
+            listener.getLogger().println("No Bitbucket commit to report the build status to");
+            return;
+        }
+        DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
+        String buildState = state != null ? state : stateOf(run.getResult(), descriptor.isServer());
+        String rootUrl = Jenkins.getActiveInstance().getRootUrl();
+        BitbucketBuildStatusNotifier.Status status = new BitbucketBuildStatusNotifier.Status(repository, commit,
+                key != null ? key : keyOf(run), buildState, run.getFullDisplayName(),
+                (rootUrl != null ? rootUrl : "") + run.getUrl(), description);
+        if (descriptor.getNotifier().submit(status)) {
+            listener.getLogger().println("Reporting " + buildState + " to Bitbucket for " + repository + "@" + commit);
+        } else {
+            listener.getLogger().println("Too many build statuses waiting to be sent to Bitbucket, dropped " + buildState);
+        }
+    }
+
+    /**
+     * Bitbucket Cloud limits keys to 40 characters, longer job names are hashed.
+     */
+    static String keyOf(Run<?, ?> run) {
+        String name = run.getParent().getFullName();
+        return name.length() <= 40 ? name : Util.getDigestOf(name);
+    }
+
+    /**
+     * @param result result of the build, {@code null} while a Pipeline run is still going
+     */
+    static String stateOf(@CheckForNull Result result, boolean server) {
+        if (result == null) {
+            return "INPROGRESS";
+        }
+        if (result.isBetterOrEqualTo(Result.SUCCESS)) {
+            return "SUCCESSFUL";
+        }
+        if (result == Result.ABORTED && !server) {
+            return "STOPPED";
+        }
+        return "FAILED";
+    }
+
+    public BuildStepMonitor getRequiredMonitorService() {
+        return BuildStepMonitor.NONE;
+    }
+
+    @Extension
+    @Symbol("bitbucketBuildStatus")
+    public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+
+        private transient final ScheduledExecutorService executor = Executors.newScheduledThreadPool(
+                BitbucketBuildStatusNotifier.CONNECTIONS,
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketBuildStatusNotifier"));
+
+        private transient BitbucketBuildStatusNotifier notifier;
+
+        private String serverUrl;
+        private String credentialsId;
+        private int capacity = 1000;
+        private int maxAttempts = 5;
+
+        public DescriptorImpl() {
+            load();
+        }
+
+        /**
+         * URL of Bitbucket Server, {@code null} for Bitbucket Cloud.
+         */
+        public String getServerUrl() {
+            return serverUrl;
+        }
+
+        public boolean isServer() {
+            return serverUrl != null;
+        }
+
+        public String getCredentialsId() {
+            return credentialsId;
+        }
+
+        /**
+         * Maximum number of build statuses waiting to be sent.
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Maximum number of attempts to send a build status.
+         */
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        synchronized BitbucketBuildStatusNotifier getNotifier() {
+            if (notifier == null) {
+                String url = serverUrl != null ? serverUrl : BitbucketBuildStatusNotifier.CLOUD_API_URL;
+                StandardUsernamePasswordCredentials credentials = credentialsId == null ? null
+                        : CredentialsMatchers.firstOrNull(
+                                CredentialsProvider.lookupCredentials(StandardUsernamePasswordCredentials.class,
+                                        Jenkins.getActiveInstance(), ACL.SYSTEM, URIRequirementBuilder.fromUri(url).build()),
+                                CredentialsMatchers.withId(credentialsId));
+                notifier = new BitbucketBuildStatusNotifier(url, isServer(),
+                        credentials != null ? credentials.getUsername() : null,
+                        credentials != null ? credentials.getPassword().getPlainText() : null,
+                        executor, capacity, maxAttempts, 1000);
+            }
+            return notifier;
+        }
+
+        public ListBoxModel doFillStateItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Result of the build", "");
+            items.add("In progress", "INPROGRESS");
+            items.add("Successful", "SUCCESSFUL");
+            items.add("Failed", "FAILED");
+            return items;
+        }
+
+        public ListBoxModel doFillCredentialsIdItems() {
+            Jenkins jenkins = Jenkins.getActiveInstance();
+            if (!jenkins.hasPermission(Jenkins.ADMINISTER)) {
+                return new ListBoxModel();
+            }
+            return new StandardUsernameListBoxModel().withEmptySelection().withAll(
+                    CredentialsProvider.lookupCredentials(StandardUsernamePasswordCredentials.class, jenkins, ACL.SYSTEM,
+                            URIRequirementBuilder.create().build()));
+        }
+
+        @Override
+        public synchronized boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            serverUrl = Util.fixEmptyAndTrim(json.optString("serverUrl"));
+            credentialsId = Util.fixEmptyAndTrim(json.optString("credentialsId"));
+            capacity = Math.max(1, json.optInt("capacity", 1000));
+            maxAttempts = Math.max(1, json.optInt("maxAttempts", 5));
+            save();
+            if (notifier != null) {
+                // statuses already queued on the previous notifier are still sent before its connections are closed
+                notifier.shutdownWhenIdle();
+                notifier = null;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Report the build status to Bitbucket";
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.cloudbees.jenkins.plugins;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import hudson.EnvVars;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.triggers.Trigger;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn;
+import jenkins.triggers.SCMTriggerItem;
+import jenkins.util.Timer;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Catches up with the pushes received while Jenkins was down.
+ * <p>
+ * Once the jobs are loaded, the last commit processed by every {@link BitBucketTrigger} for every repository and
+ * branch (see {@link BitbucketLastSeenHashes}) is compared with the head of the branch on the remote. Branches which
+ * moved are notified to the trigger as if Bitbucket had sent the push. To avoid a burst of requests against
+ * Bitbucket at startup the comparisons are spread over a time window, at most a few at a time, starting with the
+ * most recently active jobs.
+ */
+public class BitbucketCatchUp {
+
+    private BitbucketCatchUp() {
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void onJobsLoaded() {
+        BitBucketTrigger.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(BitBucketTrigger.DescriptorImpl.class);
+        if (descriptor == null || !descriptor.isCatchUp()) {
+            return;
+        }
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            // the hashes of a job are saved as soon as it triggers, they are never behind
+            for (Job<?, ?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+                BitBucketTrigger trigger = triggerOf(job);
+                if (trigger == null) {
+                    continue;
+                }
+                BitbucketLastSeenHashes hashes = BitbucketLastSeenHashes.of(job);
+                if (!hashes.getEntries().isEmpty()) {
+                    Run<?, ?> last = job.getLastBuild();
+                    long activity = Math.max(hashes.getLastActivity(), last != null ? last.getTimeInMillis() : 0);
+                    candidates.add(new Candidate(job, trigger, hashes.getEntries(), activity));
+                }
+            }
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+        schedule(candidates, descriptor.getCatchUpWindowSeconds() * 1000L, descriptor.getCatchUpConcurrency());
+    }
+
+    @CheckForNull
+    private static BitBucketTrigger triggerOf(Job<?, ?> job) {
+        if (job instanceof ParameterizedJobMixIn.ParameterizedJob) {
+            for (Trigger<?> trigger : ((ParameterizedJobMixIn.ParameterizedJob) job).getTriggers().values()) {
+                if (trigger instanceof BitBucketTrigger) {
+                    return (BitBucketTrigger) trigger;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Spreads the comparisons evenly over the window, most recently active jobs first.
+     */
+    private static void schedule(List<Candidate> candidates, long windowMillis, int concurrency) {
+        if (candidates.isEmpty()) {
+            return;
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            public int compare(Candidate a, Candidate b) {
+                return Long.compare(b.activity, a.activity);
+            }
+        });
+        LOGGER.log(Level.INFO, "Catching up with the pushes of {0} jobs within {1} ms",
+                new Object[]{candidates.size(), windowMillis});
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketCatchUp"));
+        executor.allowCoreThreadTimeOut(true);
+        long interval = windowMillis / candidates.size();
+        for (int i = 0; i < candidates.size(); i++) {
+            final Candidate candidate = candidates.get(i);
+            Timer.get().schedule(new Runnable() {
+                public void run() {
+                    executor.execute(candidate);
+                }
+            }, i * interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static final class Candidate implements Runnable {
+        private final Job<?, ?> job;
+        private final BitBucketTrigger trigger;
+        private final List<BitbucketLastSeenHashes.Entry> hashes;
+        private final long activity;
+
+        Candidate(Job<?, ?> job, BitBucketTrigger trigger, List<BitbucketLastSeenHashes.Entry> hashes, long activity) {
+            this.job = job;
+            this.trigger = trigger;
+            this.hashes = hashes;
+            this.activity = activity;
+        }
+
+        public void run() {
+            SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+            try {
+                for (BitbucketLastSeenHashes.Entry entry : hashes) {
+                    UserRemoteConfig remote = remote(entry);
+                    if (remote == null) {
+                        // the job no longer uses the remote
+                        continue;
+                    }
+                    GitClient git = Git.with(new LogTaskListener(LOGGER, Level.FINE), new EnvVars())
+                            .in(Jenkins.getInstance().getRootDir()).getClient();
+                    StandardUsernameCredentials credentials = BitbucketChangedPaths.credentials(job, remote);
+                    if (credentials != null) {
+                        git.addDefaultCredentials(credentials);
+                    }
+                    // a bare branch name would also match refs/heads/*/<branch> and the tags
+                    ObjectId head = git.getHeadRev(remote.getUrl(), "refs/heads/" + entry.getBranch());
+                    if (head != null && !head.name().equals(entry.getCommit())) {
+                        LOGGER.log(Level.INFO, "{0} missed a push of {1} to {2}",
+                                new Object[]{job.getFullName(), entry.getRepository(), entry.getBranch()});
+                        trigger.onPost("Bitbucket catch-up", BitBucketPayload.notification(remote.getUrl(), entry.getBranch(), head.name()));
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to catch up with the pushes of " + job.getFullName(), e);
+            } finally {
+                SecurityContextHolder.setContext(old);
+            }
+        }
+
+        /**
+         * Returns the remote the branch of an entry is listed from: the recorded one if the job still uses it, else
+         * the one pointing to its repository.
+         */
+        @CheckForNull
+        private UserRemoteConfig remote(BitbucketLastSeenHashes.Entry entry) {
+            String url = entry.getRemote();
+            if (url == null) {
+                return BitbucketChangedPaths.remoteOf(job, entry.getRepository());
+            }
+            SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+            if (item == null) {
+                return null;
+            }
+            for (SCM scm : item.getSCMs()) {
+                if (scm instanceof GitSCM) {
+                    for (UserRemoteConfig remote : ((GitSCM) scm).getUserRemoteConfigs()) {
+                        if (url.equals(remote.getUrl())) {
+                            return remote;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketCatchUp.class.getName());
+}
@@ -0,0 +1,415 @@
+package com.cloudbees.jenkins.plugins;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.util.LogTaskListener;
+import jenkins.model.Jenkins;
+import jenkins.triggers.SCMTriggerItem;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the paths changed by a Bitbucket event so that a {@link BitBucketTrigger} with include/exclude
+ * path patterns only builds when a relevant file changed.
+ * <p>
+ * The paths are taken from the payload when it lists them (old POST service). Otherwise the commit ranges
+ * of the payload are diffed in a bare mirror of the repository kept under {@code JENKINS_HOME}, into which only the
+ * refs named by the payload are fetched. Resolved ranges are cached so that the same range is never diffed twice.
+ */
+public class BitbucketChangedPaths {
+
+    private static final int CACHE_SIZE = Integer.getInteger(BitbucketChangedPaths.class.getName() + ".cacheSize", 500);
+    private static final String MIRRORS_DIR = "ronte-bitbucket-mirrors";
+
+    private static final LinkedHashMap<String, Set<String>> RANGES = new LinkedHashMap<String, Set<String>>(16, 0.75f, true);
+
+    private BitbucketChangedPaths() {
+    }
+
+    /**
+     * Tells if any of the changed paths is included and not excluded.
+     *
+     * @param paths changed paths, relative to the repository root
+     * @param includes newline or comma separated patterns, blank to include everything
+     * @param excludes newline or comma separated patterns, blank to exclude nothing
+     */
+    public static boolean isRelevant(Collection<String> paths, @CheckForNull String includes, @CheckForNull String excludes) {
+        List<Pattern> included = compile(includes);
+        List<Pattern> excluded = compile(excludes);
+        for (String path : paths) {
+            if ((included.isEmpty() || matches(included, path)) && !matches(excluded, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the paths changed by the event, or {@code null} if they cannot be determined cheaply, in which case
+     * the event must be considered relevant.
+     */
+    @CheckForNull
+    public static Set<String> of(Job<?, ?> job, JSONObject json) {
+        Set<String> paths = fromPayload(json);
+        if (paths != null) {
+            return paths;
+        }
+        List<String[]> ranges = ranges(json);
+        if (ranges.isEmpty()) {
+            return null;
+        }
+        UserRemoteConfig remote = remoteFor(job, json);
+        if (remote == null) {
+            LOGGER.log(Level.FINE, "No remote of {0} matches the payload repository", job.getFullName());
+            return null;
+        }
+        paths = new TreeSet<String>();
+        for (String[] range : ranges) {
+            Set<String> changed = diff(job, remote, range);
+            if (changed == null) {
+                return null;
+            }
+            paths.addAll(changed);
+        }
+        return paths;
+    }
+
+    /**
+     * Reads the files listed by the old POST service payload in {@code commits[].files}.
+     */
+    @CheckForNull
+    static Set<String> fromPayload(JSONObject payload) {
+        if (!payload.has("commits")) {
+            return null;
+        }
+        Set<String> paths = new TreeSet<String>();
+        for (Object commit : payload.getJSONArray("commits")) {
+            if (!(commit instanceof JSONObject) || !((JSONObject) commit).has("files")) {
+                return null;
+            }
+            for (Object file : ((JSONObject) commit).getJSONArray("files")) {
+                if (file instanceof JSONObject && ((JSONObject) file).has("file")) {
+                    paths.add(((JSONObject) file).getString("file"));
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Reads the {@code old..new} commit ranges of a push or pull request payload, each followed by the refs holding
+     * its commits. A range whose old commit is unknown (new branch) makes the whole event undecidable, so no range
+     * is returned.
+     */
+    static List<String[]> ranges(JSONObject payload) {
+        List<String[]> ranges = new ArrayList<String[]>();
+        if (payload.has("push")) {
+            // Bitbucket Cloud and Post Webhooks for Bitbucket Server
+            JSONArray changes = payload.getJSONObject("push").optJSONArray("changes");
+            for (Object change : changes != null ? changes : new JSONArray()) {
+                JSONObject item = (JSONObject) change;
+                String from = hash(item.optJSONObject("old"));
+                String to = hash(item.optJSONObject("new"));
+                String ref = ref(item.optJSONObject("new"));
+                if (from == null || to == null || ref == null) {
+                    return Collections.emptyList();
+                }
+                ranges.add(new String[]{from, to, ref});
+            }
+        } else if (payload.has("changes")) {
+            // Bitbucket Server refs changed
+            for (Object change : payload.getJSONArray("changes")) {
+                JSONObject item = (JSONObject) change;
+                String from = item.optString("fromHash", null);
+                String to = item.optString("toHash", null);
+                String ref = item.optString("refId", null);
+                if (isNull(from) || isNull(to) || StringUtils.isBlank(ref)) {
+                    return Collections.emptyList();
+                }
+                ranges.add(new String[]{from, to, ref});
+            }
+        } else if (payload.has("pullRequest")) {
+            // Bitbucket Server pull request
+            JSONObject pullRequest = payload.getJSONObject("pullRequest");
+            String from = pullRequest.getJSONObject("toRef").optString("latestCommit", null);
+            String to = pullRequest.getJSONObject("fromRef").optString("latestCommit", null);
+            String target = pullRequest.getJSONObject("toRef").optString("id", null);
+            String source = pullRequest.getJSONObject("fromRef").optString("id", null);
+            if (!isNull(from) && !isNull(to) && StringUtils.isNotBlank(target) && StringUtils.isNotBlank(source)) {
+                ranges.add(new String[]{from, to, target, source});
+            }
+        } else if (payload.has("pullrequest")) {
+            // Bitbucket Cloud pull request
+            JSONObject pullRequest = payload.getJSONObject("pullrequest");
+            JSONObject destination = pullRequest.optJSONObject("destination");
+            JSONObject source = pullRequest.optJSONObject("source");
+            String from = hash(destination);
+            String to = hash(source);
+            String target = destination != null ? ref(destination.optJSONObject("branch")) : null;
+            String origin = source != null ? ref(source.optJSONObject("branch")) : null;
+            if (from != null && to != null && target != null && origin != null) {
+                ranges.add(new String[]{from, to, target, origin});
+            }
+        }
+        return ranges;
+    }
+
+    @CheckForNull
+    private static String hash(@CheckForNull JSONObject ref) {
+        if (ref == null) {
+            return null;
+        }
+        JSONObject commit = ref.optJSONObject("target");
+        if (commit == null) {
+            commit = ref.optJSONObject("commit");
+        }
+        String hash = commit != null ? commit.optString("hash", null) : null;
+        return isNull(hash) ? null : hash;
+    }
+
+    /**
+     * Returns the full name of a Bitbucket Cloud branch or tag, {@code null} if unknown.
+     */
+    @CheckForNull
+    private static String ref(@CheckForNull JSONObject ref) {
+        if (ref == null || ref.isNullObject() || StringUtils.isBlank(ref.optString("name", null))) {
+            return null;
+        }
+        return ("tag".equals(ref.optString("type")) ? "refs/tags/" : "refs/heads/") + ref.getString("name");
+    }
+
+    private static boolean isNull(@CheckForNull String hash) {
+        return StringUtils.isBlank(hash) || StringUtils.containsOnly(hash, "0");
+    }
+
+    /**
+     * Picks the remote of the job which points to the repository of the payload.
+     */
+    @CheckForNull
+    static UserRemoteConfig remoteFor(Job<?, ?> job, JSONObject payload) {
+        return remoteOf(job, repositorySlug(payload));
+    }
+
+    /**
+     * Returns the remote of the job for a repository, given as {@code owner/slug} or just its slug, or the only
+     * remote of the job if none matches.
+     */
+    @CheckForNull
+    static UserRemoteConfig remoteOf(Job<?, ?> job, @CheckForNull String repository) {
+        SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+        if (item == null) {
+            return null;
+        }
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        for (SCM scm : item.getSCMs()) {
+            if (scm instanceof GitSCM) {
+                remotes.addAll(((GitSCM) scm).getUserRemoteConfigs());
+            }
+        }
+        String slug = repository != null
+                ? StringUtils.substringAfterLast("/" + StringUtils.removeEnd(StringUtils.strip(repository.toLowerCase(), "/"), ".git"), "/")
+                : null;
+        if (StringUtils.isNotEmpty(slug)) {
+            for (UserRemoteConfig remote : remotes) {
+                String url = StringUtils.removeEnd(StringUtils.removeEnd(remote.getUrl().toLowerCase(), "/"), ".git");
+                if (url.endsWith("/" + slug) || url.endsWith(":" + slug)) {
+                    return remote;
+                }
+            }
+        }
+        return remotes.size() == 1 ? remotes.get(0) : null;
+    }
+
+    @CheckForNull
+    private static String repositorySlug(JSONObject payload) {
+        JSONObject repo = payload.optJSONObject("repository");
+        if (repo == null && payload.has("pullRequest")) {
+            repo = payload.getJSONObject("pullRequest").getJSONObject("toRef").optJSONObject("repository");
+        }
+        if (repo == null) {
+            return null;
+        }
+        for (String key : new String[]{"slug", "full_name", "fullName", "name"}) {
+            String value = repo.optString(key, null);
+            if (StringUtils.isNotBlank(value)) {
+                value = value.toLowerCase();
+                return value.contains("/") ? value.substring(value.lastIndexOf('/') + 1) : value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists the paths changed by a range, fetching the refs of the range into the local bare mirror when needed.
+     */
+    @CheckForNull
+    private static Set<String> diff(Job<?, ?> job, UserRemoteConfig remote, String[] range) {
+        String from = range[0];
+        String to = range[1];
+        String key = remote.getUrl() + " " + from + ".." + to;
+        synchronized (RANGES) {
+            Set<String> cached = RANGES.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        File mirror = new File(new File(Jenkins.getInstance().getRootDir(), MIRRORS_DIR), Util.getDigestOf(remote.getUrl()));
+        TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+        try {
+            GitClient git;
+            // a single fetch per mirror at a time
+            synchronized (("ronte-bitbucket-mirror:" + mirror.getAbsolutePath()).intern()) {
+                git = Git.with(listener, new EnvVars()).in(mirror).getClient();
+                if (!git.hasGitRepo()) {
+                    if (!mirror.isDirectory() && !mirror.mkdirs()) {
+                        LOGGER.log(Level.WARNING, "Could not create the mirror directory {0}", mirror);
+                        return null;
+                    }
+                    git.init_().workspace(mirror.getAbsolutePath()).bare(true).execute();
+                }
+                StandardUsernameCredentials credentials = credentials(job, remote);
+                if (credentials != null) {
+                    git.addDefaultCredentials(credentials);
+                }
+                if (!git.isCommitInRepo(ObjectId.fromString(from)) || !git.isCommitInRepo(ObjectId.fromString(to))) {
+                    List<RefSpec> refspecs = new ArrayList<RefSpec>();
+                    for (int i = 2; i < range.length; i++) {
+                        refspecs.add(new RefSpec("+" + range[i] + ":" + range[i]));
+                    }
+                    git.fetch_().from(new URIish(remote.getUrl()), refspecs).execute();
+                }
+            }
+            StringWriter log = new StringWriter();
+            git.changelog().excludes(from).includes(to).to(log).execute();
+            Set<String> paths = parseRawChangelog(log.toString());
+            synchronized (RANGES) {
+                RANGES.put(key, paths);
+                Iterator<String> eldest = RANGES.keySet().iterator();
+                while (RANGES.size() > CACHE_SIZE && eldest.hasNext()) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+            return paths;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to diff " + from + ".." + to + " of " + remote.getUrl(), e);
+            return null;
+        }
+    }
+
+    @CheckForNull
+    static StandardUsernameCredentials credentials(Job<?, ?> job, UserRemoteConfig remote) {
+        if (remote.getCredentialsId() == null) {
+            return null;
+        }
+        return CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(StandardUsernameCredentials.class, job, ACL.SYSTEM,
+                        URIRequirementBuilder.fromUri(remote.getUrl()).build()),
+                CredentialsMatchers.withId(remote.getCredentialsId()));
+    }
+
+    /**
+     * Extracts the paths from the raw lines ({@code :100644 100644 abc def M\tpath}) of a changelog.
+     */
+    static Set<String> parseRawChangelog(String changelog) {
+        Set<String> paths = new TreeSet<String>();
+        for (String line : changelog.split("\n")) {
+            if (line.startsWith(":")) {
+                String[] fields = line.split("\t");
+                for (int i = 1; i < fields.length; i++) {
+                    paths.add(fields[i].trim());
+                }
+            }
+        }
+        return paths;
+    }
+
+    private static List<Pattern> compile(@CheckForNull String patterns) {
+        List<Pattern> compiled = new ArrayList<Pattern>();
+        if (patterns == null) {
+            return compiled;
+        }
+        for (String pattern : patterns.split("[,\\n]")) {
+            pattern = pattern.trim();
+            if (!pattern.isEmpty()) {
+                compiled.add(Pattern.compile(globToRegex(pattern)));
+            }
+        }
+        return compiled;
+    }
+
+    private static boolean matches(List<Pattern> patterns, String path) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Translates an Ant style pattern: {@code **} matches any number of directories, {@code *} and {@code ?}
+     * match within a single path segment. A pattern ending with {@code /} matches everything below it.
+     */
+    static String globToRegex(String glob) {
+        if (glob.startsWith("/")) {
+            glob = glob.substring(1);
+        }
+        if (glob.endsWith("/")) {
+            glob = glob + "**";
+        }
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+                    regex.append("(?:.*/)?");
+                    i += 2;
+                } else {
+                    regex.append(".*");
+                    i++;
+                }
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketChangedPaths.class.getName());
+}
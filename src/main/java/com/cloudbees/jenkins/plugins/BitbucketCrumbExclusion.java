@@ -12,12 +12,15 @@ import java.io.IOException;
 @Extension
 public class BitbucketCrumbExclusion extends CrumbExclusion {
     private static final String EXCLUSION_PATH = "/" + BitbucketHookReceiver.BITBUCKET_HOOK_URL;
+    private static final String NOTIFY_EXCLUSION_PATH = "/" + BitbucketNotifyReceiver.BITBUCKET_NOTIFY_URL;
 
     @Override
     public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
             throws IOException, ServletException {
         String pathInfo = req.getPathInfo();
-        if (pathInfo != null && (pathInfo.equals(EXCLUSION_PATH) || pathInfo.equals(EXCLUSION_PATH + "/"))) {
+        // ronte-bitbucket-hook/<lane>/ receives the payloads of an ingestion lane
+        if (pathInfo != null && (pathInfo.equals(EXCLUSION_PATH) || pathInfo.startsWith(EXCLUSION_PATH + "/")
+                || pathInfo.equals(NOTIFY_EXCLUSION_PATH) || pathInfo.equals(NOTIFY_EXCLUSION_PATH + "/"))) {
             chain.doFilter(req, resp);
             return true;
         }
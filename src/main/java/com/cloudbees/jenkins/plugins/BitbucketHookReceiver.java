@@ -5,13 +5,18 @@ import hudson.model.UnprotectedRootAction;
 
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.io.IOUtils;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -37,9 +42,36 @@ public class BitbucketHookReceiver implements UnprotectedRootAction {
     /**
      * Bitbucket send <a href="https://confluence.atlassian.com/display/BITBUCKET/Write+brokers+(hooks)+for+Bitbucket">payload</a>
      * as form-urlencoded <pre>payload=JSON</pre>
+     * <p>
+     * The payload is processed asynchronously in the ingestion lane of its source: a 200 only means that it has
+     * been queued, not that any job has been polled or triggered. The request is refused with a 503 when that lane
+     * is full.
      * @throws IOException
      */
-    public void doIndex(StaplerRequest req) throws IOException {
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        receive(null, req, rsp);
+    }
+
+    /**
+     * Serves {@code ronte-bitbucket-hook/<lane>/}, which processes the payloads in the given lane if it is configured.
+     */
+    public Lane getDynamic(String lane, StaplerRequest req, StaplerResponse rsp) {
+        return new Lane(lane.toLowerCase());
+    }
+
+    public final class Lane {
+        private final String name;
+
+        Lane(String name) {
+            this.name = name;
+        }
+
+        public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            receive(name, req, rsp);
+        }
+    }
+
+    private void receive(String lane, StaplerRequest req, StaplerResponse rsp) throws IOException {
         String body = IOUtils.toString(req.getInputStream());
         if (!body.isEmpty() && req.getRequestURI().contains("/" + BITBUCKET_HOOK_URL + "/")) {
             String contentType = req.getContentType();
@@ -49,14 +81,78 @@ public class BitbucketHookReceiver implements UnprotectedRootAction {
             if (body.startsWith("payload=")) body = body.substring(8);
 
             LOGGER.log(Level.FINE, "Received commit hook notification : {0}", body);
-            JSONObject payload = JSONObject.fromObject(body);
+            final JSONObject payload = JSONObject.fromObject(body);
+            final BitbucketPayloadProcessor.Source source = payloadProcessor.detect(payload, req);
+            final String eventKey = req.getHeader("x-event-key");
 
-            payloadProcessor.processPayload(payload, req);
+            BitbucketIngestionLanes lanes = Jenkins.getInstance().getDescriptorByType(BitBucketTrigger.DescriptorImpl.class).getIngestionLanes();
+            if (lane == null || !lanes.isConfigured(lane)) {
+                if (lane != null) {
+                    LOGGER.log(Level.FINE, "No lane {0} is configured, using the lane of the source", lane);
+                }
+                lane = source.getLaneName();
+            }
+            final String name = lane;
+            boolean accepted = lanes.submit(lane, new Runnable() {
+                public void run() {
+                    payloadProcessor.processPayload(source, payload, eventKey, name);
+                }
+            });
+            if (!accepted) {
+                rsp.setHeader("Retry-After", "60");
+                rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The " + lane + " lane is full");
+            }
         } else {
             LOGGER.log(Level.WARNING, "The Jenkins job cannot be triggered. You might no have configured correctly the WebHook on BitBucket with the last slash `http://<JENKINS-URL>/ronte-bitbucket-hook/`");
         }
 
     }
 
+    /**
+     * Exposes the trigger queue statistics as JSON, for administrators. The latency of a lane is the one of its
+     * ingestion ({@code lanes}) plus the wait and run times of its share of the trigger queue
+     * ({@code triggerQueue.lanes}).
+     */
+    public void doStats(StaplerResponse rsp) throws IOException {
+        Jenkins jenkins = Jenkins.getInstance();
+        jenkins.checkPermission(Jenkins.ADMINISTER);
+
+        BitBucketTrigger.DescriptorImpl descriptor = jenkins.getDescriptorByType(BitBucketTrigger.DescriptorImpl.class);
+        BitbucketTriggerQueue queue = descriptor.getQueue();
+        JSONObject priorityClasses = new JSONObject();
+        for (Map.Entry<String, BitbucketTriggerQueue.Statistics> entry : queue.getStatistics().entrySet()) {
+            BitbucketTriggerQueue.Statistics stats = entry.getValue();
+            priorityClasses.element(entry.getKey(), new JSONObject()
+                    .element("queued", stats.getQueued())
+                    .element("served", stats.getServed())
+                    .element("averageWaitMillis", stats.getAverageWaitMillis())
+                    .element("maxWaitMillis", stats.getMaxWaitMillis()));
+        }
+        JSONObject lanes = new JSONObject();
+        for (Map.Entry<String, BitbucketTriggerQueue.Statistics> entry : queue.getLaneStatistics().entrySet()) {
+            BitbucketTriggerQueue.Statistics stats = entry.getValue();
+            lanes.element(entry.getKey(), new JSONObject()
+                    .element("workers", queue.getWorkers(entry.getKey()))
+                    .element("queued", stats.getQueued())
+                    .element("inProgress", stats.getInProgress())
+                    .element("served", stats.getServed())
+                    .element("averageWaitMillis", stats.getAverageWaitMillis())
+                    .element("maxWaitMillis", stats.getMaxWaitMillis())
+                    .element("averageRunMillis", stats.getAverageRunMillis())
+                    .element("maxRunMillis", stats.getMaxRunMillis()));
+        }
+        JSONObject json = new JSONObject()
+                .element("triggerQueue", new JSONObject()
+                        .element("pending", queue.getPending())
+                        .element("inProgress", queue.getInProgress())
+                        .element("priorityClasses", priorityClasses)
+                        .element("lanes", lanes))
+                .element("hosts", descriptor.getThrottle().getHosts())
+                .element("lanes", descriptor.getIngestionLanes().getStatistics());
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(json.toString(2));
+    }
+
     private static final Logger LOGGER = Logger.getLogger(BitbucketHookReceiver.class.getName());
 }
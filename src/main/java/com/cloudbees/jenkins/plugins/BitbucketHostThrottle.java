@@ -0,0 +1,272 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.model.Job;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.mercurial.MercurialSCM;
+import hudson.scm.SCM;
+import jenkins.triggers.SCMTriggerItem;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+
+import javax.annotation.CheckForNull;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of concurrent pollings per remote host and stops polling a host which keeps failing.
+ * <p>
+ * Events which cannot poll right away are parked, never dropped. After a number of consecutive failed or timed out
+ * pollings the circuit of the host opens: every event is parked and, once the open period is over, a single one is
+ * let through to probe the host. When the probe succeeds the circuit closes and the parked events are released one
+ * at a time at the configured interval; when it fails the circuit opens for another period.
+ */
+public class BitbucketHostThrottle {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final ScheduledExecutorService timer;
+    private final Map<String, Host> hosts = new LinkedHashMap<String, Host>();
+    private int maxConcurrent;
+    private int failureThreshold = 5;
+    private long openMillis = 60000;
+    private long releaseIntervalMillis = 1000;
+
+    /**
+     * @param timer used to probe open circuits and release parked events
+     */
+    public BitbucketHostThrottle(ScheduledExecutorService timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * @param maxConcurrent maximum number of concurrent pollings per host, 0 for no limit
+     * @param failureThreshold consecutive failures opening the circuit, 0 to never open it
+     * @param openMillis time an open circuit waits before probing the host
+     * @param releaseIntervalMillis interval between the release of two parked events once the circuit closes
+     */
+    public synchronized void configure(int maxConcurrent, int failureThreshold, long openMillis, long releaseIntervalMillis) {
+        this.maxConcurrent = maxConcurrent;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.releaseIntervalMillis = releaseIntervalMillis;
+    }
+
+    /**
+     * Acquires the right to poll the host.
+     *
+     * @param host remote host, {@code null} when unknown in which case polling is never throttled
+     * @param resubmit run when the host lets a parked event through, typically to queue it again
+     * @return {@code true} if the caller may poll now and must then call {@link #release(String, boolean)}, or
+     * {@link #release(String)} if it does not poll after all, {@code false} if the event has been parked
+     */
+    public synchronized boolean tryAcquire(@CheckForNull String host, Runnable resubmit) {
+        if (host == null) {
+            return true;
+        }
+        Host h = host(host);
+        switch (h.state) {
+            case CLOSED:
+                if (maxConcurrent <= 0 || h.running < maxConcurrent) {
+                    h.running++;
+                    return true;
+                }
+                break;
+            case OPEN:
+                if (System.currentTimeMillis() - h.openedAt >= openMillis) {
+                    LOGGER.log(Level.INFO, "Probing {0}", host);
+                    h.state = State.HALF_OPEN;
+                    h.running++;
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+        h.parked.add(resubmit);
+        LOGGER.log(Level.FINE, "Parked an event for {0}: {1} parked", new Object[]{host, h.parked.size()});
+        return false;
+    }
+
+    /**
+     * Releases the right to poll the host.
+     *
+     * @param success whether the polling succeeded in time
+     */
+    public synchronized void release(@CheckForNull String host, boolean success) {
+        if (host == null) {
+            return;
+        }
+        final Host h = host(host);
+        h.running = Math.max(0, h.running - 1);
+        if (success) {
+            h.failures = 0;
+            if (h.state != State.CLOSED) {
+                LOGGER.log(Level.INFO, "{0} recovered, releasing {1} parked events", new Object[]{host, h.parked.size()});
+                h.state = State.CLOSED;
+                releaseParked(h);
+            } else if (!h.parked.isEmpty()) {
+                timer.execute(h.parked.poll());
+            }
+            return;
+        }
+        h.failures++;
+        if (h.state == State.HALF_OPEN || (h.state == State.CLOSED && failureThreshold > 0 && h.failures >= failureThreshold)) {
+            LOGGER.log(Level.WARNING, "Polling {0} failed {1} times in a row, parking its events for {2} ms",
+                    new Object[]{host, h.failures, openMillis});
+            h.state = State.OPEN;
+            h.openedAt = System.currentTimeMillis();
+            scheduleProbe(h);
+        } else if (h.state == State.CLOSED && !h.parked.isEmpty()) {
+            timer.execute(h.parked.poll());
+        }
+    }
+
+    /**
+     * Releases the right to poll the host when the event turned out not to need polling, leaving the failure count
+     * and the circuit of the host as they are.
+     */
+    public synchronized void release(@CheckForNull String host) {
+        if (host == null) {
+            return;
+        }
+        Host h = host(host);
+        h.running = Math.max(0, h.running - 1);
+        if (h.state == State.HALF_OPEN) {
+            // the probe never reached the host, the next event probes it instead
+            h.state = State.OPEN;
+        }
+        if ((h.state == State.CLOSED || System.currentTimeMillis() - h.openedAt >= openMillis) && !h.parked.isEmpty()) {
+            timer.execute(h.parked.poll());
+        }
+    }
+
+    /**
+     * Lets the first parked event through once the open period is over, so that it probes the host.
+     */
+    private void scheduleProbe(final Host h) {
+        timer.schedule(new Runnable() {
+            public void run() {
+                Runnable probe;
+                synchronized (BitbucketHostThrottle.this) {
+                    if (h.state != State.OPEN || h.parked.isEmpty()) {
+                        return;
+                    }
+                    // the open period is over even if the timer fired a bit early
+                    h.openedAt = Math.min(h.openedAt, System.currentTimeMillis() - openMillis);
+                    probe = h.parked.poll();
+                }
+                probe.run();
+            }
+        }, openMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void releaseParked(Host h) {
+        long delay = 0;
+        for (Runnable parked = h.parked.poll(); parked != null; parked = h.parked.poll()) {
+            timer.schedule(parked, delay, TimeUnit.MILLISECONDS);
+            delay += releaseIntervalMillis;
+        }
+    }
+
+    private Host host(String host) {
+        Host h = hosts.get(host);
+        if (h == null) {
+            h = new Host();
+            hosts.put(host, h);
+        }
+        return h;
+    }
+
+    /**
+     * Returns a snapshot of the state of every host, for monitoring.
+     */
+    public synchronized Map<String, Map<String, Object>> getHosts() {
+        Map<String, Map<String, Object>> snapshot = new LinkedHashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+            Map<String, Object> host = new LinkedHashMap<String, Object>();
+            host.put("state", entry.getValue().state.name());
+            host.put("running", entry.getValue().running);
+            host.put("parked", entry.getValue().parked.size());
+            host.put("failures", entry.getValue().failures);
+            snapshot.put(entry.getKey(), host);
+        }
+        return snapshot;
+    }
+
+    public synchronized State getState(String host) {
+        return host(host).state;
+    }
+
+    /**
+     * Returns the host of the remote of the job pointing to the notified repository, else the one of its first
+     * remote.
+     */
+    @CheckForNull
+    public static String hostOf(Job<?, ?> job, @CheckForNull String repository) {
+        UserRemoteConfig remote = BitbucketChangedPaths.remoteOf(job, repository);
+        if (remote != null && remote.getUrl() != null) {
+            try {
+                String host = new URIish(remote.getUrl()).getHost();
+                if (host != null) {
+                    return host.toLowerCase();
+                }
+            } catch (URISyntaxException e) {
+                LOGGER.log(Level.FINE, "Could not parse the remote " + remote.getUrl() + " of " + job.getFullName(), e);
+            }
+        }
+        return hostOf(job);
+    }
+
+    /**
+     * Returns the host of the first remote of the job, if any.
+     */
+    @CheckForNull
+    public static String hostOf(Job<?, ?> job) {
+        SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+        if (item == null) {
+            return null;
+        }
+        for (SCM scm : item.getSCMs()) {
+            if (scm instanceof GitSCM) {
+                for (RemoteConfig remoteConfig : ((GitSCM) scm).getRepositories()) {
+                    for (URIish uri : remoteConfig.getURIs()) {
+                        if (uri.getHost() != null) {
+                            return uri.getHost().toLowerCase();
+                        }
+                    }
+                }
+            } else if (scm instanceof MercurialSCM) {
+                try {
+                    String host = new URI(((MercurialSCM) scm).getSource()).getHost();
+                    if (host != null) {
+                        return host.toLowerCase();
+                    }
+                } catch (URISyntaxException e) {
+                    LOGGER.log(Level.FINE, "Could not parse the source of " + job.getFullName(), e);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static final class Host {
+        private State state = State.CLOSED;
+        private int running;
+        private int failures;
+        private long openedAt;
+        private final Deque<Runnable> parked = new ArrayDeque<Runnable>();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketHostThrottle.class.getName());
+}
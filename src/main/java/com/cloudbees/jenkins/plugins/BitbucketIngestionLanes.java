@@ -0,0 +1,216 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bulkheads between the sources of payloads: every lane processes its payloads on its own workers from its own
+ * bounded queue, so that a flood from one source neither delays nor exhausts the others.
+ * <p>
+ * Lanes are created on first use, with the limits configured for their name or the default ones. A payload is
+ * acknowledged to Bitbucket as soon as it is queued in its lane, so the lanes are given a few seconds to drain when
+ * Jenkins stops.
+ */
+public class BitbucketIngestionLanes {
+
+    public static final int DEFAULT_WORKERS = 2;
+    public static final int DEFAULT_CAPACITY = 100;
+
+    /**
+     * How long the lanes may take to process their queued payloads when Jenkins stops.
+     */
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+
+    private final Map<String, Lane> lanes = new LinkedHashMap<String, Lane>();
+    private final Map<String, BitbucketLane> limits = new LinkedHashMap<String, BitbucketLane>();
+
+    /**
+     * Sets the limits of the configured lanes. Payloads already queued in a lane whose capacity changes are still
+     * processed.
+     */
+    public synchronized void configure(List<BitbucketLane> configured) {
+        limits.clear();
+        for (BitbucketLane lane : configured) {
+            limits.put(lane.getName(), lane);
+        }
+        for (Map.Entry<String, Lane> entry : lanes.entrySet()) {
+            BitbucketLane limit = limitOf(entry.getKey());
+            Lane lane = entry.getValue();
+            if (lane.capacity != limit.getCapacity()) {
+                lane.executor.shutdown();
+                lane.executor = executor(entry.getKey(), limit);
+                lane.capacity = limit.getCapacity();
+            } else if (lane.executor.getMaximumPoolSize() != limit.getWorkers()) {
+                if (limit.getWorkers() > lane.executor.getMaximumPoolSize()) {
+                    lane.executor.setMaximumPoolSize(limit.getWorkers());
+                    lane.executor.setCorePoolSize(limit.getWorkers());
+                } else {
+                    lane.executor.setCorePoolSize(limit.getWorkers());
+                    lane.executor.setMaximumPoolSize(limit.getWorkers());
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether a lane is configured with this name.
+     */
+    public synchronized boolean isConfigured(String name) {
+        return limits.containsKey(name);
+    }
+
+    /**
+     * Queues a payload in a lane.
+     *
+     * @return {@code false} if the queue of the lane is full and the payload has been refused
+     */
+    public boolean submit(String name, final Runnable task) {
+        final Lane lane;
+        synchronized (this) {
+            lane = lane(name);
+        }
+        final long queuedAt = System.currentTimeMillis();
+        try {
+            lane.executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Error | RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to process a BitBucket payload", e);
+                    } finally {
+                        lane.completed(System.currentTimeMillis() - queuedAt);
+                    }
+                }
+            });
+            lane.accepted();
+            return true;
+        } catch (RejectedExecutionException e) {
+            lane.rejected();
+            LOGGER.log(Level.WARNING, "Refused a BitBucket payload: the {0} lane is full", name);
+            return false;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the statistics of every lane, for monitoring.
+     */
+    public synchronized Map<String, Map<String, Object>> getStatistics() {
+        Map<String, Map<String, Object>> snapshot = new LinkedHashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, Lane> entry : lanes.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().statistics());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Stops the workers of every lane, leaving them some time to process their queued payloads. Bitbucket has already
+     * been answered for the payloads still queued then, so they are dropped and logged: only the catch-up can recover
+     * their pushes after the restart.
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        Map<String, Lane> stopping;
+        synchronized (this) {
+            stopping = new LinkedHashMap<String, Lane>(lanes);
+        }
+        for (Lane lane : stopping.values()) {
+            lane.executor.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Map.Entry<String, Lane> entry : stopping.entrySet()) {
+            ThreadPoolExecutor executor = entry.getValue().executor;
+            if (!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                int dropped = executor.shutdownNow().size();
+                LOGGER.log(Level.WARNING, "Dropped {0} BitBucket payload(s) still queued in the {1} lane at shutdown",
+                        new Object[]{dropped, entry.getKey()});
+            }
+        }
+    }
+
+    @Terminator
+    public static void shutdownLanes() throws InterruptedException {
+        BitBucketTrigger.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(BitBucketTrigger.DescriptorImpl.class);
+        if (descriptor != null) {
+            descriptor.getIngestionLanes().shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+        }
+    }
+
+    private Lane lane(String name) {
+        Lane lane = lanes.get(name);
+        if (lane == null) {
+            BitbucketLane limit = limitOf(name);
+            lane = new Lane(executor(name, limit), limit.getCapacity());
+            lanes.put(name, lane);
+        }
+        return lane;
+    }
+
+    private BitbucketLane limitOf(String name) {
+        BitbucketLane limit = limits.get(name);
+        return limit != null ? limit : new BitbucketLane(name, DEFAULT_WORKERS, DEFAULT_CAPACITY);
+    }
+
+    private static ThreadPoolExecutor executor(String name, BitbucketLane limit) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(limit.getWorkers(), limit.getWorkers(), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(limit.getCapacity()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketLane " + name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static final class Lane {
+        private volatile ThreadPoolExecutor executor;
+        private volatile int capacity;
+        private long accepted;
+        private long rejected;
+        private long completed;
+        private long totalLatencyMillis;
+        private long maxLatencyMillis;
+
+        Lane(ThreadPoolExecutor executor, int capacity) {
+            this.executor = executor;
+            this.capacity = capacity;
+        }
+
+        synchronized void accepted() {
+            accepted++;
+        }
+
+        synchronized void rejected() {
+            rejected++;
+        }
+
+        synchronized void completed(long latencyMillis) {
+            completed++;
+            totalLatencyMillis += latencyMillis;
+            maxLatencyMillis = Math.max(maxLatencyMillis, latencyMillis);
+        }
+
+        synchronized Map<String, Object> statistics() {
+            Map<String, Object> stats = new LinkedHashMap<String, Object>();
+            stats.put("workers", executor.getMaximumPoolSize());
+            stats.put("capacity", capacity);
+            stats.put("queued", executor.getQueue().size());
+            stats.put("active", executor.getActiveCount());
+            stats.put("accepted", accepted);
+            stats.put("rejected", rejected);
+            stats.put("completed", completed);
+            stats.put("averageLatencyMillis", completed == 0 ? 0 : totalLatencyMillis / completed);
+            stats.put("maxLatencyMillis", maxLatencyMillis);
+            return stats;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketIngestionLanes.class.getName());
+}
@@ -18,6 +18,7 @@ import hudson.triggers.Trigger;
 import jenkins.model.Jenkins;
 
 import jenkins.model.ParameterizedJobMixIn;
+import jenkins.scm.api.SCMHeadEvent;
 import jenkins.triggers.SCMTriggerItem;
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
@@ -37,6 +38,18 @@ public class BitbucketJobProbe {
     }
 
     public void triggerMatchingJobs(String user, String url, String scm, String payload) {
+        triggerMatchingJobs(user, url, scm, new BitBucketPayload(payload));
+    }
+
+    /**
+     * Triggers the matching jobs, polling and scheduling them in the lane of the trigger queue the payload was
+     * received in.
+     */
+    public void triggerMatchingJobs(String user, String url, String scm, String payload, String lane) {
+        triggerMatchingJobs(user, url, scm, new BitBucketPayload(payload).withLane(lane));
+    }
+
+    public void triggerMatchingJobs(String user, String url, String scm, BitBucketPayload payload) {
         if ("git".equals(scm) || "hg".equals(scm)) {
             SecurityContext old = Jenkins.getInstance().getACL().impersonate(ACL.SYSTEM);
             try {
@@ -79,6 +92,17 @@ public class BitbucketJobProbe {
         }
     }
 
+    /**
+     * Notifies the multibranch projects of the branches changed by a push, so that they only update those branches.
+     */
+    public void fireHeadEvents(List<BitbucketSCMHeadEvent> events) {
+        for (BitbucketSCMHeadEvent event : events) {
+            LOGGER.log(Level.FINE, "Firing {0} of {1} in {2}",
+                    new Object[]{event.getType(), event.getBranch(), event.getRepository()});
+            SCMHeadEvent.fireNow(event);
+        }
+    }
+
     private boolean hasBeenTriggered(List<SCM> scmTriggered, SCM scmTrigger) {
         for (SCM scm : scmTriggered) {
             if (scm.equals(scmTrigger)) {
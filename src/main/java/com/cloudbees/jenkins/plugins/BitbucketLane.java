@@ -0,0 +1,52 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Limits of an ingestion lane of {@link BitbucketIngestionLanes}. The name is either the one of a payload source
+ * ({@code cloud}, {@code server-post-webhooks}, {@code server}, {@code legacy}) or a path suffix, in which case the
+ * lane receives the payloads posted to {@code ronte-bitbucket-hook/<name>/}.
+ */
+public class BitbucketLane extends AbstractDescribableImpl<BitbucketLane> {
+
+    private final String name;
+    private final int workers;
+    private final int capacity;
+
+    @DataBoundConstructor
+    public BitbucketLane(String name, int workers, int capacity) {
+        this.name = Util.fixEmptyAndTrim(name) != null ? name.trim().toLowerCase() : "default";
+        this.workers = Math.max(1, workers);
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Number of payloads of the lane processed at the same time.
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Number of payloads of the lane waiting to be processed beyond which new ones are refused.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<BitbucketLane> {
+        @Override
+        public String getDisplayName() {
+            return "Ingestion lane";
+        }
+    }
+}
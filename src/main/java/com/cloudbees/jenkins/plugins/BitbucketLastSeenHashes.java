@@ -0,0 +1,207 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.XmlFile;
+import hudson.model.Job;
+import hudson.plugins.git.UserRemoteConfig;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers, per job, the last commit processed by {@link BitBucketTrigger} for every repository and branch, so that
+ * pushes received while Jenkins was down can be caught up after a restart (see {@link BitbucketCatchUp}).
+ * <p>
+ * Persisted in {@code bitbucket-last-seen.xml} in the job directory after every change. The hashes of a job are read
+ * once and kept in memory; every job is updated and saved under its own lock.
+ */
+public class BitbucketLastSeenHashes {
+
+    private static final String FILE = "bitbucket-last-seen.xml";
+    private static final Map<Job<?, ?>, BitbucketLastSeenHashes> LOADED = new WeakHashMap<Job<?, ?>, BitbucketLastSeenHashes>();
+
+    private final @CheckForNull XmlFile file;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * @param file where the hashes are persisted, or {@code null} to keep them in memory only
+     */
+    public BitbucketLastSeenHashes(@CheckForNull File file) {
+        this.file = file != null ? new XmlFile(Jenkins.XSTREAM2, file) : null;
+        read();
+    }
+
+    /**
+     * Returns the hashes of a job, reading them on first use or after the job has been moved.
+     */
+    public static BitbucketLastSeenHashes of(Job<?, ?> job) {
+        File file = new File(job.getRootDir(), FILE);
+        synchronized (LOADED) {
+            BitbucketLastSeenHashes hashes = LOADED.get(job);
+            if (hashes == null || hashes.file == null || !hashes.file.getFile().equals(file)) {
+                hashes = new BitbucketLastSeenHashes(file);
+                LOADED.put(job, hashes);
+            }
+            return hashes;
+        }
+    }
+
+    /**
+     * Records the commits of a payload processed for the job, see {@link #update(BitBucketPayload, String, long)}.
+     * The remote is the one of the job pointing to the repository of the payload.
+     */
+    public static void record(Job<?, ?> job, BitBucketPayload payload) {
+        UserRemoteConfig remote = BitbucketChangedPaths.remoteOf(job, payload.getRepository());
+        of(job).update(payload, remote != null ? remote.getUrl() : null, System.currentTimeMillis());
+    }
+
+    /**
+     * Records the last commit processed for every branch a payload names: every entry of {@code push.changes} or
+     * {@code changes} for a push of several branches, the single branch and commit of other events. Deleted
+     * branches are ignored.
+     *
+     * @param remote URL the branches can be listed from, {@code null} if unknown
+     * @return whether the payload named a repository, branch and commit
+     */
+    public synchronized boolean update(BitBucketPayload payload, @CheckForNull String remote, long timestamp) {
+        boolean named = false;
+        boolean changed = false;
+        for (BitBucketPayload change : payload.split()) {
+            String repository = change.getRepository();
+            String branch = change.getBranch();
+            String commit = change.getCommit();
+            if (repository != null && branch != null && commit != null) {
+                named = true;
+                changed |= put(repository, remote, branch, commit, timestamp);
+            }
+        }
+        if (changed) {
+            save();
+        }
+        return named;
+    }
+
+    /**
+     * Records the last commit processed for a branch.
+     *
+     * @param remote URL the branch can be listed from, {@code null} if unknown
+     */
+    public synchronized void update(String repository, @CheckForNull String remote, String branch, String commit, long timestamp) {
+        if (put(repository, remote, branch, commit, timestamp)) {
+            save();
+        }
+    }
+
+    private boolean put(String repository, @CheckForNull String remote, String branch, String commit, long timestamp) {
+        String key = repository.toLowerCase() + "#" + branch;
+        Entry previous = entries.get(key);
+        if (previous != null && previous.commit.equals(commit)) {
+            return false;
+        }
+        entries.put(key, new Entry(repository, remote != null ? remote : previous != null ? previous.remote : null,
+                branch, commit, timestamp));
+        return true;
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Returns when the most recent commit was processed, 0 if none was.
+     */
+    public synchronized long getLastActivity() {
+        long last = 0;
+        for (Entry entry : entries.values()) {
+            last = Math.max(last, entry.timestamp);
+        }
+        return last;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void read() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try {
+            for (Entry entry : (List<Entry>) file.read()) {
+                entries.put(entry.repository.toLowerCase() + "#" + entry.branch, entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the last seen hashes from " + file, e);
+        }
+    }
+
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.write(new ArrayList<Entry>(entries.values()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the last seen hashes to " + file, e);
+        }
+    }
+
+    public static final class Entry {
+        private final String repository;
+        private final @CheckForNull String remote;
+        private final String branch;
+        private final String commit;
+        private final long timestamp;
+
+        Entry(String repository, @CheckForNull String remote, String branch, String commit, long timestamp) {
+            this.repository = repository;
+            this.remote = remote;
+            this.branch = branch;
+            this.commit = commit;
+            this.timestamp = timestamp;
+        }
+
+        public String getRepository() {
+            return repository;
+        }
+
+        @CheckForNull
+        public String getRemote() {
+            return remote;
+        }
+
+        public String getBranch() {
+            return branch;
+        }
+
+        public String getCommit() {
+            return commit;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return repository.equals(other.repository) && branch.equals(other.branch) && commit.equals(other.commit)
+                    && (remote == null ? other.remote == null : remote.equals(other.remote)) && timestamp == other.timestamp;
+        }
+
+        @Override
+        public int hashCode() {
+            return commit.hashCode();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketLastSeenHashes.class.getName());
+}
@@ -0,0 +1,128 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.UnprotectedRootAction;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Minimal endpoint for mirrors and scripts which know what they pushed but are not Bitbucket, similar to the
+ * {@code notifyCommit} endpoint of the git plugin. No JSON is involved:
+ * <pre>
+ * curl -X POST "http://JENKINS/ronte-bitbucket-notify/?url=ssh://git@host/proj/repo.git&amp;branch=master&amp;sha=..."
+ * </pre>
+ * A batch of notifications can be sent in one request, either by repeating the {@code url}, {@code branch}
+ * and {@code sha} parameters, or as a {@code text/plain} body with one {@code url branch [sha]} line per
+ * notification. Repeated parameters are matched by position, so {@code branch} has to be repeated as many times
+ * as {@code url}, and {@code sha} either as many times or not at all. The optional {@code user} and {@code scm}
+ * ({@code git} by default, or {@code hg}) parameters apply to the whole batch.
+ */
+@Extension
+public class BitbucketNotifyReceiver implements UnprotectedRootAction {
+
+    public static final String BITBUCKET_NOTIFY_URL = "ronte-bitbucket-notify";
+
+    private final BitbucketJobProbe probe;
+
+    public BitbucketNotifyReceiver() {
+        this(new BitbucketJobProbe());
+    }
+
+    BitbucketNotifyReceiver(BitbucketJobProbe probe) {
+        this.probe = probe;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return BITBUCKET_NOTIFY_URL;
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        String user = Util.fixEmptyAndTrim(req.getParameter("user"));
+        String scm = Util.fixEmptyAndTrim(req.getParameter("scm"));
+        if (scm == null) {
+            scm = "git";
+        } else if (!"git".equals(scm) && !"hg".equals(scm)) {
+            // checked before any notification of the batch is triggered
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported SCM type " + scm);
+            return;
+        }
+        List<String[]> notifications;
+        try {
+            notifications = parse(req);
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (notifications.isEmpty()) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected url and branch parameters, or url branch [sha] lines");
+            return;
+        }
+        for (String[] notification : notifications) {
+            LOGGER.log(Level.FINE, "Received notification for {0} {1} {2}", notification);
+            probe.triggerMatchingJobs(user != null ? user : "notification", notification[0], scm,
+                    BitBucketPayload.notification(notification[0], notification[1], notification[2]));
+        }
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.getWriter().println("Scheduled " + notifications.size() + " notification(s)");
+    }
+
+    /**
+     * Reads the {url, branch, sha} notifications of a request; sha may be null.
+     *
+     * @throws IllegalArgumentException if the repeated parameters cannot be matched by position
+     */
+    static List<String[]> parse(StaplerRequest req) throws IOException {
+        List<String[]> notifications = new ArrayList<String[]>();
+        String contentType = req.getContentType();
+        if (contentType != null && contentType.startsWith("text/plain")) {
+            for (String line : IOUtils.toString(req.getInputStream(), "UTF-8").split("\n")) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length >= 2) {
+                    notifications.add(new String[]{fields[0], fields[1], fields.length > 2 ? fields[2] : null});
+                }
+            }
+        }
+        String[] urls = req.getParameterValues("url");
+        String[] branches = req.getParameterValues("branch");
+        String[] shas = req.getParameterValues("sha");
+        if (urls != null && branches != null) {
+            if (branches.length != urls.length) {
+                throw new IllegalArgumentException("Expected one branch per url, got " + branches.length
+                        + " branch(es) for " + urls.length + " url(s)");
+            }
+            if (shas != null && shas.length != urls.length) {
+                throw new IllegalArgumentException("Expected one sha per url or none, got " + shas.length
+                        + " sha(s) for " + urls.length + " url(s)");
+            }
+            for (int i = 0; i < urls.length; i++) {
+                String url = Util.fixEmptyAndTrim(urls[i]);
+                String branch = Util.fixEmptyAndTrim(branches[i]);
+                if (url != null && branch != null) {
+                    notifications.add(new String[]{url, branch, shas != null ? Util.fixEmptyAndTrim(shas[i]) : null});
+                }
+            }
+        }
+        return notifications;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketNotifyReceiver.class.getName());
+}
@@ -2,6 +2,7 @@ package com.cloudbees.jenkins.plugins;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,33 +14,116 @@ import net.sf.json.JSONObject;
 public class BitbucketPayloadProcessor {
 
     private final BitbucketJobProbe probe;
+    private final BitbucketPullRequestCache pullRequests;
 
-    public BitbucketPayloadProcessor(BitbucketJobProbe probe) {
+    public BitbucketPayloadProcessor(BitbucketJobProbe probe, BitbucketPullRequestCache pullRequests) {
         this.probe = probe;
+        this.pullRequests = pullRequests;
+    }
+
+    public BitbucketPayloadProcessor(BitbucketJobProbe probe) {
+        this(probe, new BitbucketPullRequestCache());
     }
 
     public BitbucketPayloadProcessor() {
-        this(new BitbucketJobProbe());
+        this(new BitbucketJobProbe(), BitbucketPullRequestCache.load());
     }
 
-    public void processPayload(JSONObject payload, HttpServletRequest request) {
+    /**
+     * Dialects of the payloads Bitbucket sends.
+     */
+    public enum Source {
+        /**
+         * Bitbucket Cloud Webhooks 2.0.
+         */
+        CLOUD("cloud"),
+        /**
+         * Bitbucket Server with the Post Webhooks for Bitbucket plugin.
+         */
+        SERVER_POST_WEBHOOKS("server-post-webhooks"),
+        /**
+         * Bitbucket Server native webhooks.
+         */
+        SERVER_NATIVE("server"),
+        /**
+         * The old Bitbucket POST service.
+         */
+        LEGACY_POST("legacy");
+
+        private final String laneName;
+
+        Source(String laneName) {
+            this.laneName = laneName;
+        }
+
+        /**
+         * Name of the ingestion lane the payloads of this source go to by default.
+         */
+        public String getLaneName() {
+            return laneName;
+        }
+    }
+
+    /**
+     * Tells which dialect a payload is written in.
+     */
+    public Source detect(JSONObject payload, HttpServletRequest request) {
         if ("Bitbucket-Webhooks/2.0".equals(request.getHeader("user-agent"))) {
-            if ("repo:push".equals(request.getHeader("x-event-key"))) {
-                LOGGER.log(Level.INFO, "Processing new Webhooks payload");
-                processWebhookPayload(payload);
-            }
+            return Source.CLOUD;
         } else if (payload.has("actor") && payload.has("repository") && payload.getJSONObject("repository").has("links")) {
-            if ("repo:push".equals(request.getHeader("x-event-key"))) {
-                LOGGER.log(Level.INFO, "Processing new Webhooks payload");
-                processWebhookPayloadBitBucketServer(payload);
-            }
+            return Source.SERVER_POST_WEBHOOKS;
         } else if (payload.has("actor")) {
-        	// we assume that the passed hook was from bitbucket server https://confluence.atlassian.com/bitbucketserver/managing-webhooks-in-bitbucket-server-938025878.html
-        	LOGGER.log(Level.INFO, "Processing webhook for self-hosted bitbucket instance");
-        	processWebhookPayloadBitBucketSelfHosted(payload);
-        } else {
-            LOGGER.log(Level.INFO, "Processing old POST service payload");
-            processPostServicePayload(payload);
+            return Source.SERVER_NATIVE;
+        }
+        return Source.LEGACY_POST;
+    }
+
+    public void processPayload(JSONObject payload, HttpServletRequest request) {
+        processPayload(detect(payload, request), payload, request.getHeader("x-event-key"));
+    }
+
+    /**
+     * Processes a payload whose source has already been detected, in the lane of that source.
+     *
+     * @param eventKey value of the {@code X-Event-Key} header, if any
+     */
+    public void processPayload(Source source, JSONObject payload, String eventKey) {
+        processPayload(source, payload, eventKey, source.getLaneName());
+    }
+
+    /**
+     * Processes a payload whose source has already been detected.
+     *
+     * @param eventKey value of the {@code X-Event-Key} header, if any
+     * @param lane name of the ingestion lane the payload was received in, whose share of the trigger queue polls
+     * and schedules the matching jobs
+     */
+    public void processPayload(Source source, JSONObject payload, String eventKey, String lane) {
+        switch (source) {
+            case CLOUD:
+                if ("repo:push".equals(eventKey)) {
+                    LOGGER.log(Level.INFO, "Processing new Webhooks payload");
+                    processWebhookPayload(payload, lane);
+                } else if (eventKey != null && eventKey.startsWith("pullrequest:")) {
+                    LOGGER.log(Level.INFO, "Processing new Webhooks pull request payload");
+                    processWebhookPullRequestPayload(payload, eventKey, lane);
+                }
+                break;
+            case SERVER_POST_WEBHOOKS:
+                if ("repo:push".equals(eventKey)) {
+                    LOGGER.log(Level.INFO, "Processing new Webhooks payload");
+                    processWebhookPayloadBitBucketServer(payload, lane);
+                }
+                break;
+            case SERVER_NATIVE:
+                // we assume that the passed hook was from bitbucket server https://confluence.atlassian.com/bitbucketserver/managing-webhooks-in-bitbucket-server-938025878.html
+                LOGGER.log(Level.INFO, "Processing webhook for self-hosted bitbucket instance");
+                processWebhookPayloadBitBucketSelfHosted(payload, lane);
+                break;
+            default:
+                LOGGER.log(Level.INFO, "Processing old POST service payload");
+                processPostServicePayload(payload, lane);
+                break;
         }
     }
 
@@ -50,15 +134,18 @@ public class BitbucketPayloadProcessor {
      * https://confluence.atlassian.com/bitbucketserver0510/event-payload-951390742.html
      * 
      * @param payload The payload matching the definition in https://confluence.atlassian.com/bitbucketserver0510/event-payload-951390742.html
+     * @param lane name of the ingestion lane the payload was received in
      */
-    private void processWebhookPayloadBitBucketSelfHosted(JSONObject payload) {
+    private void processWebhookPayloadBitBucketSelfHosted(JSONObject payload, String lane) {
     	JSONObject repo;
+    	JSONObject pullRequest = null;
     	
     	// find the repository hidden in different objects
     	if (payload.has("repository")) { // for push to repository
     		repo = payload.getJSONObject("repository");
     	} else if (payload.has("pullRequest")) { // for all PR events
-    		repo = payload.getJSONObject("pullRequest").getJSONObject("toRef").getJSONObject("repository");
+    		pullRequest = payload.getJSONObject("pullRequest");
+    		repo = pullRequest.getJSONObject("toRef").getJSONObject("repository");
     	} else {
     		LOGGER.log(Level.WARNING, "Not possible to trigger job for event '{0}'. Only PR events and pushes are supported for now.", payload.get("eventKey"));
     		LOGGER.log(Level.FINE, payload.toString());
@@ -68,13 +155,26 @@ public class BitbucketPayloadProcessor {
         String user = payload.getJSONObject("actor").getString("name");
         String url = repo.getJSONObject("project").getString("key").toLowerCase() + "/" + repo.getString("slug");
 
+        if (pullRequest != null && !pullRequests.update(url + "#" + pullRequest.getString("id"),
+                pullRequest.getJSONObject("fromRef").optString("latestCommit", null),
+                pullRequest.getJSONObject("toRef").optString("id", null),
+                pullRequest.optString("state", null))) {
+            LOGGER.log(Level.INFO, "Ignoring event ''{0}'' for pull request {1} of {2}: the code did not change",
+                    new Object[]{payload.opt("eventKey"), pullRequest.get("id"), url});
+            return;
+        }
+
+        if (pullRequest == null) {
+            fireHeadEvents(payload, null);
+        }
+
         // always use git no other repo type supported on self hosted solution
         String scm = "git";
-        probe.triggerMatchingJobs(user, url, scm, payload.toString());
+        probe.triggerMatchingJobs(user, url, scm, payload.toString(), lane);
 		
 	}
 
-	private void processWebhookPayload(JSONObject payload) {
+	private void processWebhookPayload(JSONObject payload, String lane) {
         if (payload.has("repository")) {
             JSONObject repo = payload.getJSONObject("repository");
             LOGGER.log(Level.INFO, "Received commit hook notification for {0}", repo);
@@ -83,18 +183,62 @@ public class BitbucketPayloadProcessor {
             String url = repo.getJSONObject("links").getJSONObject("html").getString("href");
             String scm = repo.has("scm") ? repo.getString("scm") : "git";
 
-            probe.triggerMatchingJobs(user, url, scm, payload.toString());
+            if ("git".equals(scm)) {
+                fireHeadEvents(payload, url);
+            }
+            probe.triggerMatchingJobs(user, url, scm, payload.toString(), lane);
         } else if (payload.has("scm")) {
             LOGGER.log(Level.INFO, "Received commit hook notification for hg: {0}", payload);
             String user = getUser(payload, "owner");
             String url = payload.getJSONObject("links").getJSONObject("html").getString("href");
             String scm = payload.has("scm") ? payload.getString("scm") : "hg";
 
-            probe.triggerMatchingJobs(user, url, scm, payload.toString());
+            probe.triggerMatchingJobs(user, url, scm, payload.toString(), lane);
         }
 
     }
 
+    /**
+     * Processes a pull request event sent by Bitbucket Cloud. Only events which change the source commit,
+     * change the destination branch or merge the pull request trigger the jobs.
+     */
+    private void processWebhookPullRequestPayload(JSONObject payload, String eventKey, String lane) {
+        if (!payload.has("pullrequest") || !payload.has("repository")) {
+            return;
+        }
+        JSONObject pullRequest = payload.getJSONObject("pullrequest");
+        JSONObject repo = payload.getJSONObject("repository");
+        String url = repo.getJSONObject("links").getJSONObject("html").getString("href");
+
+        JSONObject source = pullRequest.optJSONObject("source");
+        JSONObject destination = pullRequest.optJSONObject("destination");
+        String sourceCommit = source != null && source.optJSONObject("commit") != null
+                ? source.getJSONObject("commit").optString("hash", null) : null;
+        String targetBranch = destination != null && destination.optJSONObject("branch") != null
+                ? destination.getJSONObject("branch").optString("name", null) : null;
+
+        if (!pullRequests.update(url + "#" + pullRequest.getString("id"), sourceCommit, targetBranch,
+                pullRequest.optString("state", null))) {
+            LOGGER.log(Level.INFO, "Ignoring event ''{0}'' for pull request {1} of {2}: the code did not change",
+                    new Object[]{eventKey, pullRequest.get("id"), url});
+            return;
+        }
+
+        String user = getUser(payload, "actor");
+        String scm = repo.has("scm") ? repo.getString("scm") : "git";
+        probe.triggerMatchingJobs(user, url, scm, payload.toString(), lane);
+    }
+
+    /**
+     * Notifies the multibranch projects of the branches changed by a push.
+     */
+    private void fireHeadEvents(JSONObject payload, String url) {
+        List<BitbucketSCMHeadEvent> events = BitbucketSCMHeadEvent.fromPayload(payload, url);
+        if (!events.isEmpty()) {
+            probe.fireHeadEvents(events);
+        }
+    }
+
     private String getUser(JSONObject payload, String jsonObject) {
         String user;
         try {
@@ -115,8 +259,9 @@ public class BitbucketPayloadProcessor {
      * should be installed and configured
      *
      * @param payload
+     * @param lane name of the ingestion lane the payload was received in
      */
-    private void processWebhookPayloadBitBucketServer(JSONObject payload) {
+    private void processWebhookPayloadBitBucketServer(JSONObject payload, String lane) {
         JSONObject repo = payload.getJSONObject("repository");
         String user = getUser(payload, "actor");
         String url = "";
@@ -125,7 +270,8 @@ public class BitbucketPayloadProcessor {
                 URL pushHref = new URL(repo.getJSONObject("links").getJSONArray("self").getJSONObject(0).getString("href"));
                 url = pushHref.toString().replaceFirst(new String("projects.*"), new String(repo.getString("fullName").toLowerCase()));
                 String scm = repo.has("scmId") ? repo.getString("scmId") : "git";
-                probe.triggerMatchingJobs(user, url, scm, payload.toString());
+                fireHeadEvents(payload, url);
+                probe.triggerMatchingJobs(user, url, scm, payload.toString(), lane);
             } catch (MalformedURLException e) {
                 LOGGER.log(Level.WARNING, String.format("URL %s is malformed", url), e);
             }
@@ -171,7 +317,7 @@ public class BitbucketPayloadProcessor {
     "user": "marcus"
 }
 */
-    private void processPostServicePayload(JSONObject payload) {
+    private void processPostServicePayload(JSONObject payload, String lane) {
         JSONObject repo = payload.getJSONObject("repository");
         LOGGER.log(Level.INFO, "Received commit hook notification for {0}", repo);
 
@@ -179,7 +325,7 @@ public class BitbucketPayloadProcessor {
         String url = payload.getString("canon_url") + repo.getString("absolute_url");
         String scm = repo.getString("scm");
 
-        probe.triggerMatchingJobs(user, url, scm, payload.toString());
+        probe.triggerMatchingJobs(user, url, scm, payload.toString(), lane);
     }
 
     private static final Logger LOGGER = Logger.getLogger(BitbucketPayloadProcessor.class.getName());
@@ -0,0 +1,110 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.model.Job;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the logs of the last BitBucket pollings of a job, one file per polling, under
+ * {@code bitbucket-polling/<id>.log} in the job directory.
+ * <p>
+ * Builds only remember the id of the polling which started them (see {@link BitBucketPushCause}) and read the
+ * log from here when it is displayed, instead of carrying a copy of it. Only the most recent logs are retained.
+ */
+public class BitbucketPollingLogStore {
+
+    private static final int RETAINED = Integer.getInteger(BitbucketPollingLogStore.class.getName() + ".retained", 500);
+    private static final String SUFFIX = ".log";
+    private static final AtomicLong LAST_ID = new AtomicLong();
+
+    private final File dir;
+    private final int retained;
+
+    BitbucketPollingLogStore(File dir, int retained) {
+        this.dir = dir;
+        this.retained = Math.max(1, retained);
+    }
+
+    public static BitbucketPollingLogStore of(Job<?, ?> job) {
+        return new BitbucketPollingLogStore(new File(job.getRootDir(), "bitbucket-polling"), RETAINED);
+    }
+
+    /**
+     * Allocates a new polling record and returns its id. Ids grow with time.
+     */
+    public long newRecord() {
+        long now = System.currentTimeMillis();
+        long last;
+        long id;
+        do {
+            last = LAST_ID.get();
+            id = Math.max(last + 1, now);
+        } while (!LAST_ID.compareAndSet(last, id));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOGGER.log(Level.WARNING, "Could not create {0}", dir);
+        }
+        prune();
+        return id;
+    }
+
+    /**
+     * Returns the log file of a polling record, which may no longer exist once the record has been pruned.
+     */
+    public File getFile(long id) {
+        return new File(dir, id + SUFFIX);
+    }
+
+    /**
+     * Returns the log of the most recent polling, if any.
+     */
+    @CheckForNull
+    public File getLatest() {
+        File[] logs = list();
+        return logs.length == 0 ? null : logs[logs.length - 1];
+    }
+
+    /**
+     * Deletes the oldest logs, leaving room for the one about to be written.
+     */
+    private void prune() {
+        File[] logs = list();
+        for (int i = 0; i < logs.length - (retained - 1); i++) {
+            if (!logs[i].delete()) {
+                LOGGER.log(Level.FINE, "Could not delete {0}", logs[i]);
+            }
+        }
+    }
+
+    /**
+     * Lists the logs from the oldest to the most recent.
+     */
+    private File[] list() {
+        File[] logs = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.matches("\\d+\\" + SUFFIX);
+            }
+        });
+        if (logs == null) {
+            return new File[0];
+        }
+        long[] ids = new long[logs.length];
+        for (int i = 0; i < logs.length; i++) {
+            String name = logs[i].getName();
+            ids[i] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        }
+        Arrays.sort(ids);
+        File[] sorted = new File[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            sorted[i] = getFile(ids[i]);
+        }
+        return sorted;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketPollingLogStore.class.getName());
+}
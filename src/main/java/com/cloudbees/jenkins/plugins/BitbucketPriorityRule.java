@@ -0,0 +1,154 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.annotation.CheckForNull;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Maps the events of some repositories, branches and event types to a priority class of the
+ * {@link BitbucketTriggerQueue}. Patterns accept {@code *} and {@code **} wildcards; a blank pattern matches anything.
+ * The patterns are compiled once, when the rule is created or loaded.
+ */
+public class BitbucketPriorityRule extends AbstractDescribableImpl<BitbucketPriorityRule> {
+
+    private final String name;
+    private final String repository;
+    private final String branch;
+    private final String event;
+    private final int priority;
+
+    private transient Pattern repositoryPattern;
+    private transient Pattern branchPattern;
+    private transient Pattern eventPattern;
+
+    @DataBoundConstructor
+    public BitbucketPriorityRule(String name, String repository, String branch, String event, int priority) {
+        this.name = Util.fixEmptyAndTrim(name);
+        this.repository = Util.fixEmptyAndTrim(repository);
+        this.branch = Util.fixEmptyAndTrim(branch);
+        this.event = Util.fixEmptyAndTrim(event);
+        this.priority = priority;
+        compile();
+    }
+
+    private Object readResolve() {
+        compile();
+        return this;
+    }
+
+    private void compile() {
+        repositoryPattern = compile(repository);
+        branchPattern = compile(branch);
+        eventPattern = compile(event);
+    }
+
+    /**
+     * Returns the pattern matching a glob, {@code null} for a blank one, which matches anything.
+     */
+    @CheckForNull
+    private static Pattern compile(@CheckForNull String glob) {
+        if (glob == null) {
+            return null;
+        }
+        try {
+            return Pattern.compile(BitbucketChangedPaths.globToRegex(glob), Pattern.CASE_INSENSITIVE);
+        } catch (PatternSyntaxException e) {
+            LOGGER.log(Level.WARNING, "Invalid priority rule pattern " + glob + ", the rule will not match", e);
+            return NEVER;
+        }
+    }
+
+    /**
+     * Name of the priority class, used in the queue statistics.
+     */
+    public String getName() {
+        return name != null ? name : "priority " + priority;
+    }
+
+    public String getRepository() {
+        return repository;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public boolean matches(BitBucketPayload payload) {
+        return matches(repositoryPattern, payload.getRepository())
+                && matches(branchPattern, payload.getBranch())
+                && matches(eventPattern, payload.getEventType());
+    }
+
+    private static boolean matches(@CheckForNull Pattern pattern, @CheckForNull String value) {
+        if (pattern == null) {
+            return true;
+        }
+        return value != null && pattern.matcher(value).matches();
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<BitbucketPriorityRule> {
+        @Override
+        public String getDisplayName() {
+            return "Priority rule";
+        }
+
+        public FormValidation doCheckRepository(@QueryParameter String value) {
+            return checkPattern(value);
+        }
+
+        public FormValidation doCheckBranch(@QueryParameter String value) {
+            return checkPattern(value);
+        }
+
+        public FormValidation doCheckEvent(@QueryParameter String value) {
+            return checkPattern(value);
+        }
+
+        static FormValidation checkPattern(@CheckForNull String value) {
+            String glob = Util.fixEmptyAndTrim(value);
+            if (glob == null) {
+                return FormValidation.ok();
+            }
+            try {
+                Pattern.compile(BitbucketChangedPaths.globToRegex(glob));
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error("Invalid pattern: " + e.getDescription());
+            }
+            if (REGEX_SYNTAX.matcher(glob).find()) {
+                return FormValidation.warning("Only * and ** are wildcards: the pattern is not a regular expression");
+            }
+            return FormValidation.ok();
+        }
+    }
+
+    /**
+     * Matches nothing, used in place of a pattern which does not compile.
+     */
+    private static final Pattern NEVER = Pattern.compile("(?!)");
+
+    /**
+     * Looks like a regular expression rather than a glob.
+     */
+    private static final Pattern REGEX_SYNTAX = Pattern.compile("[\\^$|()\\[\\]{}+]|\\.\\*");
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketPriorityRule.class.getName());
+}
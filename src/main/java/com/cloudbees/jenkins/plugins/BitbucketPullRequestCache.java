@@ -0,0 +1,145 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the last seen source commit, target branch and state of every pull request, keyed by repository
+ * and pull request id, so that pull request updates which do not change the code (comments, approvals,
+ * reviewer changes, title edits) neither poll nor build.
+ * <p>
+ * The cache is bounded: once {@link #getCapacity()} pull requests are known, the least recently updated one
+ * is forgotten. It is persisted to an XML file after every change so that it survives restarts.
+ */
+public class BitbucketPullRequestCache {
+
+    public static final String MERGED = "MERGED";
+
+    private static final int DEFAULT_CAPACITY = Integer.getInteger(BitbucketPullRequestCache.class.getName() + ".capacity", 1000);
+
+    private final int capacity;
+    private final @CheckForNull XmlFile file;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Creates a cache which is persisted in the given file.
+     *
+     * @param file where the cache is persisted, or {@code null} to keep it in memory only
+     * @param capacity maximum number of pull requests remembered
+     */
+    public BitbucketPullRequestCache(@CheckForNull File file, int capacity) {
+        this.file = file != null ? new XmlFile(Jenkins.XSTREAM2, file) : null;
+        this.capacity = capacity;
+    }
+
+    public BitbucketPullRequestCache() {
+        this(null, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Loads the cache persisted in the Jenkins root directory.
+     */
+    public static BitbucketPullRequestCache load() {
+        BitbucketPullRequestCache cache = new BitbucketPullRequestCache(
+                new File(Jenkins.getInstance().getRootDir(), "ronte-bitbucket-pullrequests.xml"), DEFAULT_CAPACITY);
+        cache.read();
+        return cache;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Records the current state of a pull request.
+     *
+     * @param key repository and pull request id
+     * @param sourceCommit latest commit of the source branch
+     * @param targetBranch branch the pull request will be merged into
+     * @param state pull request state as sent by Bitbucket ({@code OPEN}, {@code MERGED}, {@code DECLINED}...)
+     * @return {@code true} if the update changed the source commit, changed the target branch or merged the
+     * pull request and should therefore trigger; also {@code true} for a pull request not seen before
+     */
+    public synchronized boolean update(String key, String sourceCommit, String targetBranch, String state) {
+        Entry previous = entries.get(key);
+        boolean changed = previous == null
+                || !equal(previous.sourceCommit, sourceCommit)
+                || !equal(previous.targetBranch, targetBranch)
+                || (MERGED.equals(state) && !MERGED.equals(previous.state));
+        if (previous == null || changed || !equal(previous.state, state)) {
+            entries.put(key, new Entry(key, sourceCommit, targetBranch, state));
+            trim();
+            save();
+        }
+        return changed;
+    }
+
+    private void trim() {
+        Iterator<String> eldest = entries.keySet().iterator();
+        while (entries.size() > capacity && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void read() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try {
+            List<Entry> persisted = (List<Entry>) file.read();
+            for (Entry entry : persisted) {
+                entries.put(entry.key, entry);
+            }
+            trim();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the pull request cache from " + file, e);
+        }
+    }
+
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.write(new ArrayList<Entry>(entries.values()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the pull request cache to " + file, e);
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    static final class Entry {
+        private final String key;
+        private final String sourceCommit;
+        private final String targetBranch;
+        private final String state;
+
+        Entry(String key, String sourceCommit, String targetBranch, String state) {
+            this.key = key;
+            this.sourceCommit = sourceCommit;
+            this.targetBranch = targetBranch;
+            this.state = state;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketPullRequestCache.class.getName());
+}
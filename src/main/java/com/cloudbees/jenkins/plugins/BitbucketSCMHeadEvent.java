@@ -0,0 +1,200 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.scm.SCM;
+import jenkins.plugins.git.AbstractGitSCMSource;
+import jenkins.plugins.git.GitSCMSource;
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMHeadEvent;
+import jenkins.scm.api.SCMNavigator;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMSource;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.eclipse.jgit.transport.URIish;
+
+import javax.annotation.CheckForNull;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A branch created, updated or removed by a BitBucket push, fired to the multibranch projects so that they only
+ * update the branch it names instead of scanning every branch of the repository.
+ * <p>
+ * Applies to the Git sources whose remote is the pushed repository. Classic jobs are still triggered by
+ * {@link BitBucketTrigger}.
+ */
+public class BitbucketSCMHeadEvent extends SCMHeadEvent<JSONObject> {
+
+    private final String repository;
+    private final @CheckForNull String host;
+    private final String branch;
+    private final @CheckForNull String hash;
+
+    /**
+     * @param repository {@code owner/slug} or {@code project/slug} of the repository, case insensitive
+     * @param host host of the repository, {@code null} when the payload does not tell (Bitbucket Server webhooks)
+     * @param branch name of the branch
+     * @param hash new head of the branch, {@code null} when it has been removed
+     */
+    public BitbucketSCMHeadEvent(Type type, long timestamp, JSONObject payload, String repository,
+                                 @CheckForNull String host, String branch, @CheckForNull String hash) {
+        super(type, timestamp, payload);
+        this.repository = repository.toLowerCase();
+        this.host = host != null ? host.toLowerCase() : null;
+        this.branch = branch;
+        this.hash = hash;
+    }
+
+    public String getRepository() {
+        return repository;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    @CheckForNull
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public boolean isMatch(SCMNavigator navigator) {
+        return false;
+    }
+
+    @Override
+    public String getSourceName() {
+        return repository.substring(repository.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public Map<SCMHead, SCMRevision> heads(SCMSource source) {
+        if (!(source instanceof AbstractGitSCMSource) || !isMatch(((AbstractGitSCMSource) source).getRemote())) {
+            return Collections.emptyMap();
+        }
+        if (source instanceof GitSCMSource && ((GitSCMSource) source).isIgnoreOnPushNotifications()) {
+            return Collections.emptyMap();
+        }
+        SCMHead head = new SCMHead(branch);
+        return Collections.<SCMHead, SCMRevision>singletonMap(head,
+                hash != null ? new AbstractGitSCMSource.SCMRevisionImpl(head, hash) : null);
+    }
+
+    @Override
+    public boolean isMatch(SCM scm) {
+        // classic jobs are triggered by BitBucketTrigger
+        return false;
+    }
+
+    /**
+     * Whether a Git remote, in any of the URL forms Bitbucket offers, points to the pushed repository.
+     */
+    boolean isMatch(String remote) {
+        try {
+            URIish uri = new URIish(remote);
+            if (host != null && uri.getHost() != null && !host.equalsIgnoreCase(uri.getHost())) {
+                return false;
+            }
+            String path = uri.getPath().toLowerCase().replaceFirst("^/", "").replaceFirst("^scm/", "")
+                    .replaceFirst("\\.git$", "").replaceFirst("/$", "");
+            return path.equals(repository);
+        } catch (URISyntaxException e) {
+            LOGGER.log(Level.FINE, "Could not parse the remote " + remote, e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns one event per branch changed by a push, from a Bitbucket Cloud or Post Webhooks {@code repo:push}
+     * payload or a Bitbucket Server {@code repo:refs_changed} payload. Tags are ignored.
+     *
+     * @param url URL of the repository, used for its host
+     */
+    public static List<BitbucketSCMHeadEvent> fromPayload(JSONObject payload, @CheckForNull String url) {
+        List<BitbucketSCMHeadEvent> events = new ArrayList<BitbucketSCMHeadEvent>();
+        String repository = repositoryOf(payload);
+        if (repository == null) {
+            return events;
+        }
+        String host = hostOf(url);
+        long now = System.currentTimeMillis();
+
+        JSONObject push = object(payload, "push");
+        if (push != null && push.optJSONArray("changes") != null) {
+            for (Object item : push.getJSONArray("changes")) {
+                JSONObject change = (JSONObject) item;
+                JSONObject newRef = object(change, "new");
+                JSONObject oldRef = object(change, "old");
+                JSONObject ref = newRef != null ? newRef : oldRef;
+                if (ref == null || !"branch".equals(ref.optString("type")) || ref.optString("name", null) == null) {
+                    continue;
+                }
+                Type type = oldRef == null ? Type.CREATED : newRef == null ? Type.REMOVED : Type.UPDATED;
+                JSONObject target = newRef != null ? object(newRef, "target") : null;
+                events.add(new BitbucketSCMHeadEvent(type, now, payload, repository, host, ref.getString("name"),
+                        target != null ? target.optString("hash", null) : null));
+            }
+        }
+
+        JSONArray changes = payload.optJSONArray("changes");
+        if (changes != null) {
+            for (Object item : changes) {
+                JSONObject change = (JSONObject) item;
+                JSONObject ref = object(change, "ref");
+                if (ref == null || !"BRANCH".equals(ref.optString("type")) || ref.optString("displayId", null) == null) {
+                    continue;
+                }
+                String changeType = change.optString("type");
+                Type type = "ADD".equals(changeType) ? Type.CREATED : "DELETE".equals(changeType) ? Type.REMOVED : Type.UPDATED;
+                events.add(new BitbucketSCMHeadEvent(type, now, payload, repository, host, ref.getString("displayId"),
+                        type == Type.REMOVED ? null : change.optString("toHash", null)));
+            }
+        }
+        return events;
+    }
+
+    @CheckForNull
+    private static String repositoryOf(JSONObject payload) {
+        JSONObject repo = object(payload, "repository");
+        if (repo == null) {
+            return null;
+        }
+        if (repo.optString("full_name", null) != null) {
+            return repo.getString("full_name");
+        }
+        if (repo.optString("fullName", null) != null) {
+            return repo.getString("fullName");
+        }
+        JSONObject project = object(repo, "project");
+        if (project != null && project.optString("key", null) != null && repo.optString("slug", null) != null) {
+            return project.getString("key") + "/" + repo.getString("slug");
+        }
+        return null;
+    }
+
+    @CheckForNull
+    private static String hostOf(@CheckForNull String url) {
+        if (url == null) {
+            return null;
+        }
+        try {
+            return new URIish(url).getHost();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    @CheckForNull
+    private static JSONObject object(JSONObject json, String key) {
+        Object value = json.opt(key);
+        return value instanceof JSONObject && !((JSONObject) value).isNullObject() ? (JSONObject) value : null;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketSCMHeadEvent.class.getName());
+}
@@ -0,0 +1,343 @@
+package com.cloudbees.jenkins.plugins;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue of the polling and scheduling tasks of {@link BitBucketTrigger}, served by a bounded number of workers
+ * in priority order rather than first come first served.
+ * <p>
+ * Every task belongs to a priority class. To avoid starvation, the priority of a waiting task grows by one every
+ * aging period. The time spent waiting in the queue and running is recorded per priority class.
+ * <p>
+ * Every task also belongs to the ingestion lane its payload was received in (see {@link BitbucketIngestionLanes}).
+ * Each lane is queued and served apart, with its own workers, so that the bulkhead between the sources of payloads
+ * also covers their polling and scheduling. Priorities and aging only apply between the tasks of a lane.
+ */
+public class BitbucketTriggerQueue {
+
+    /**
+     * Lane of the tasks which were not received in an ingestion lane, such as notifications and catch-ups.
+     */
+    public static final String DEFAULT_LANE = "default";
+
+    private final ExecutorService executors;
+    private final Map<String, Lane> lanes = new LinkedHashMap<String, Lane>();
+    private final Map<String, Statistics> statistics = new LinkedHashMap<String, Statistics>();
+    private final Map<String, Integer> laneWorkers = new HashMap<String, Integer>();
+    private int workers = 1;
+    private long agingMillis = 30000;
+
+    /**
+     * @param executors thread pool the workers run on
+     */
+    public BitbucketTriggerQueue(ExecutorService executors) {
+        this.executors = executors;
+    }
+
+    /**
+     * @param workers maximum number of tasks of a lane running at the same time
+     * @param agingMillis waiting time after which a task is served as if it had one more level of priority,
+     * or 0 to disable aging
+     */
+    public synchronized void configure(int workers, long agingMillis) {
+        configure(workers, agingMillis, Collections.<String, Integer>emptyMap());
+    }
+
+    /**
+     * @param workers maximum number of tasks of a lane running at the same time, for the lanes not in
+     * {@code laneWorkers}
+     * @param agingMillis waiting time after which a task is served as if it had one more level of priority,
+     * or 0 to disable aging
+     * @param laneWorkers maximum number of tasks running at the same time, by lane
+     */
+    public synchronized void configure(int workers, long agingMillis, Map<String, Integer> laneWorkers) {
+        this.workers = Math.max(1, workers);
+        this.agingMillis = agingMillis;
+        this.laneWorkers.clear();
+        this.laneWorkers.putAll(laneWorkers);
+        for (Map.Entry<String, Lane> entry : lanes.entrySet()) {
+            entry.getValue().workers = workersOf(entry.getKey());
+            startWorkers(entry.getValue());
+        }
+    }
+
+    /**
+     * Queues a task in the default lane.
+     *
+     * @param task what to run
+     * @param priorityClass name of the priority class of the task, used for the statistics
+     * @param priority higher priorities are served first
+     */
+    public void execute(Runnable task, String priorityClass, int priority) {
+        execute(task, null, priorityClass, priority);
+    }
+
+    /**
+     * Queues a task.
+     *
+     * @param task what to run
+     * @param lane name of the ingestion lane the task comes from, {@code null} for the default lane
+     * @param priorityClass name of the priority class of the task, used for the statistics
+     * @param priority higher priorities are served first within the lane
+     */
+    public synchronized void execute(Runnable task, @CheckForNull String lane, String priorityClass, int priority) {
+        Lane queue = lane(lane != null ? lane : DEFAULT_LANE);
+        queue.pending.add(new Task(task, priorityClass, priority, System.currentTimeMillis()));
+        statistics(priorityClass).queued++;
+        queue.statistics.queued++;
+        startWorkers(queue);
+    }
+
+    public synchronized int getPending() {
+        int pending = 0;
+        for (Lane lane : lanes.values()) {
+            pending += lane.pending.size();
+        }
+        return pending;
+    }
+
+    public synchronized int getInProgress() {
+        int running = 0;
+        for (Lane lane : lanes.values()) {
+            running += lane.running;
+        }
+        return running;
+    }
+
+    /**
+     * Returns the maximum number of tasks of a lane running at the same time.
+     */
+    public synchronized int getWorkers(String lane) {
+        return workersOf(lane);
+    }
+
+    /**
+     * Returns a snapshot of the queue statistics, by priority class.
+     */
+    public synchronized Map<String, Statistics> getStatistics() {
+        Map<String, Statistics> snapshot = new LinkedHashMap<String, Statistics>();
+        for (Map.Entry<String, Statistics> entry : statistics.entrySet()) {
+            snapshot.put(entry.getKey(), new Statistics(entry.getValue()));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns a snapshot of the queue statistics, by lane.
+     */
+    public synchronized Map<String, Statistics> getLaneStatistics() {
+        Map<String, Statistics> snapshot = new LinkedHashMap<String, Statistics>();
+        for (Map.Entry<String, Lane> entry : lanes.entrySet()) {
+            snapshot.put(entry.getKey(), new Statistics(entry.getValue().statistics));
+        }
+        return snapshot;
+    }
+
+    private Lane lane(String name) {
+        Lane lane = lanes.get(name);
+        if (lane == null) {
+            lane = new Lane(workersOf(name));
+            lanes.put(name, lane);
+        }
+        return lane;
+    }
+
+    private int workersOf(String lane) {
+        Integer configured = laneWorkers.get(lane);
+        return configured != null ? Math.max(1, configured) : workers;
+    }
+
+    /**
+     * Starts workers up to the limit of the lane while its tasks are waiting; workers finding nothing to take exit
+     * right away.
+     */
+    private void startWorkers(Lane lane) {
+        while (lane.running < lane.workers && !lane.pending.isEmpty()) {
+            lane.running++;
+            executors.submit(new Worker(lane));
+        }
+    }
+
+    /**
+     * Takes the task of the lane with the highest priority, aging included; the oldest one among equals.
+     */
+    private synchronized Task take(Lane lane) {
+        if (lane.pending.isEmpty() || lane.running > lane.workers) {
+            lane.running--;
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        // pending is in arrival order, so the oldest task wins among equals
+        Task next = null;
+        long best = Long.MIN_VALUE;
+        for (Task task : lane.pending) {
+            long priority = task.effectivePriority(now, agingMillis);
+            if (next == null || priority > best) {
+                next = task;
+                best = priority;
+            }
+        }
+        lane.pending.remove(next);
+        long waited = now - next.queuedAt;
+        statistics(next.priorityClass).served(waited);
+        lane.statistics.served(waited);
+        return next;
+    }
+
+    private synchronized void completed(Lane lane, Task task, long tookMillis) {
+        statistics(task.priorityClass).completed(tookMillis);
+        lane.statistics.completed(tookMillis);
+    }
+
+    private Statistics statistics(String priorityClass) {
+        Statistics stats = statistics.get(priorityClass);
+        if (stats == null) {
+            stats = new Statistics();
+            statistics.put(priorityClass, stats);
+        }
+        return stats;
+    }
+
+    private final class Worker implements Runnable {
+        private final Lane lane;
+
+        Worker(Lane lane) {
+            this.lane = lane;
+        }
+
+        public void run() {
+            for (Task task = take(lane); task != null; task = take(lane)) {
+                long start = System.currentTimeMillis();
+                try {
+                    task.runnable.run();
+                } catch (Error | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "BitBucket trigger task failed", e);
+                } finally {
+                    completed(lane, task, System.currentTimeMillis() - start);
+                }
+            }
+        }
+    }
+
+    private static final class Lane {
+        private final List<Task> pending = new ArrayList<Task>();
+        private final Statistics statistics = new Statistics();
+        private int workers;
+        private int running;
+
+        Lane(int workers) {
+            this.workers = workers;
+        }
+    }
+
+    private static final class Task {
+        private final Runnable runnable;
+        private final String priorityClass;
+        private final int priority;
+        private final long queuedAt;
+
+        Task(Runnable runnable, String priorityClass, int priority, long queuedAt) {
+            this.runnable = runnable;
+            this.priorityClass = priorityClass;
+            this.priority = priority;
+            this.queuedAt = queuedAt;
+        }
+
+        /**
+         * Returns the priority plus one for every aging period spent waiting.
+         */
+        long effectivePriority(long now, long agingMillis) {
+            return priority + (agingMillis > 0 ? (now - queuedAt) / agingMillis : 0);
+        }
+    }
+
+    /**
+     * Queue statistics of one priority class or lane.
+     */
+    public static final class Statistics {
+        private int queued;
+        private long served;
+        private long totalWaitMillis;
+        private long maxWaitMillis;
+        private long completed;
+        private long totalRunMillis;
+        private long maxRunMillis;
+
+        Statistics() {
+        }
+
+        Statistics(Statistics other) {
+            this.queued = other.queued;
+            this.served = other.served;
+            this.totalWaitMillis = other.totalWaitMillis;
+            this.maxWaitMillis = other.maxWaitMillis;
+            this.completed = other.completed;
+            this.totalRunMillis = other.totalRunMillis;
+            this.maxRunMillis = other.maxRunMillis;
+        }
+
+        void served(long waitedMillis) {
+            queued--;
+            served++;
+            totalWaitMillis += waitedMillis;
+            maxWaitMillis = Math.max(maxWaitMillis, waitedMillis);
+        }
+
+        void completed(long tookMillis) {
+            completed++;
+            totalRunMillis += tookMillis;
+            maxRunMillis = Math.max(maxRunMillis, tookMillis);
+        }
+
+        /**
+         * Number of tasks currently waiting.
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * Number of tasks taken off the queue so far.
+         */
+        public long getServed() {
+            return served;
+        }
+
+        public long getAverageWaitMillis() {
+            return served == 0 ? 0 : totalWaitMillis / served;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        /**
+         * Number of tasks taken off the queue and still running.
+         */
+        public long getInProgress() {
+            return served - completed;
+        }
+
+        /**
+         * Average time spent polling and scheduling, once taken off the queue.
+         */
+        public long getAverageRunMillis() {
+            return completed == 0 ? 0 : totalRunMillis / completed;
+        }
+
+        public long getMaxRunMillis() {
+            return maxRunMillis;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketTriggerQueue.class.getName());
+}
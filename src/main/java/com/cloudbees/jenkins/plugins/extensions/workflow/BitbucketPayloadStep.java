@@ -0,0 +1,127 @@
+package com.cloudbees.jenkins.plugins.extensions.workflow;
+
+import com.cloudbees.jenkins.plugins.BitBucketPayload;
+import com.google.inject.Inject;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Run;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Returns the BitBucket payload which triggered the Pipeline run, parsed on demand on the controller, so that
+ * it never goes through the environment of the processes spawned on agents.
+ * <p>
+ * Without {@code field}, returns the projected fields ({@code repository}, {@code branch}, {@code author}).
+ * With a dotted {@code field} such as {@code push.changes.0.new.name}, returns that part of the payload
+ * as plain strings, lists and maps, or {@code null} if it is absent.
+ */
+public class BitbucketPayloadStep extends AbstractStepImpl {
+
+    private String field;
+
+    @DataBoundConstructor
+    public BitbucketPayloadStep() {
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    @DataBoundSetter
+    public void setField(String field) {
+        this.field = Util.fixEmptyAndTrim(field);
+    }
+
+    public static class Execution extends AbstractSynchronousNonBlockingStepExecution<Object> {
+
+        @StepContextParameter
+        private transient Run<?, ?> run;
+
+        @Inject(optional = true)
+        private transient BitbucketPayloadStep step;
+
+        @Override
+        protected Object run() throws Exception {
+            BitBucketPayload payload = run.getAction(BitBucketPayload.class);
+            if (payload == null) {
+                return null;
+            }
+            if (step.getField() == null) {
+                Map<String, Object> fields = new LinkedHashMap<String, Object>();
+                fields.put("repository", payload.getRepository());
+                fields.put("branch", payload.getBranch());
+                JSONObject actor = payload.getJSON().optJSONObject("actor");
+                fields.put("author", actor != null ? actor.optString("nickname", actor.optString("name", null)) : null);
+                return fields;
+            }
+            Object value = payload.getJSON();
+            for (String name : step.getField().split("\\.")) {
+                if (value instanceof JSONObject && !((JSONObject) value).isNullObject()) {
+                    value = ((JSONObject) value).opt(name);
+                } else if (value instanceof JSONArray && name.matches("\\d+") && Integer.parseInt(name) < ((JSONArray) value).size()) {
+                    value = ((JSONArray) value).get(Integer.parseInt(name));
+                } else {
+                    return null;
+                }
+            }
+            return toPlain(value);
+        }
+
+        /**
+         * Converts JSON values to plain collections which can be used from a sandboxed Pipeline.
+         */
+        private static Object toPlain(Object value) {
+            if (value == null || value instanceof JSONNull || (value instanceof JSONObject && ((JSONObject) value).isNullObject())) {
+                return null;
+            }
+            if (value instanceof JSONObject) {
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                for (Object key : ((JSONObject) value).keySet()) {
+                    map.put((String) key, toPlain(((JSONObject) value).get(key)));
+                }
+                return map;
+            }
+            if (value instanceof JSONArray) {
+                List<Object> list = new ArrayList<Object>();
+                for (Object item : (JSONArray) value) {
+                    list.add(toPlain(item));
+                }
+                return list;
+            }
+            return value;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Extension(optional = true)
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "bitbucketPayload";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Read the BitBucket payload which triggered the build";
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleProject;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BitBucketPayloadFileTest {
+
+    private static final String PAYLOAD = "{\"push\":{\"changes\":[{\"new\":{\"name\":\"master\"}}]},\"repository\":{\"name\":\"repo\"}}";
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void fileModeExportsThePathOfThePayloadAndDeletesItAfterTheBuild() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        final Map<String, String> env = new HashMap<String, String>();
+        final List<String> contents = new ArrayList<String>();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                EnvVars vars = build.getEnvironment(listener);
+                env.putAll(vars);
+                String file = vars.get("BITBUCKET_PAYLOAD_FILE");
+                if (file != null) {
+                    contents.add(new FilePath(new File(file)).readToString());
+                }
+                return true;
+            }
+        });
+
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0, new Cause.UserIdCause(), new BitBucketPayload(PAYLOAD, true)));
+
+        Assert.assertFalse(env.containsKey("BITBUCKET_PAYLOAD"));
+        String file = env.get("BITBUCKET_PAYLOAD_FILE");
+        Assert.assertNotNull(file);
+        Assert.assertEquals(PAYLOAD, contents.get(0));
+        Assert.assertEquals("master", env.get("BRANCH"));
+        Assert.assertFalse(new File(file).exists());
+    }
+
+    @Test
+    public void defaultModeExportsThePayloadItself() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        final Map<String, String> env = new HashMap<String, String>();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                env.putAll(build.getEnvironment(listener));
+                return true;
+            }
+        });
+
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0, new Cause.UserIdCause(), new BitBucketPayload(PAYLOAD)));
+
+        Assert.assertEquals(PAYLOAD, env.get("BITBUCKET_PAYLOAD"));
+        Assert.assertFalse(env.containsKey("BITBUCKET_PAYLOAD_FILE"));
+    }
+}
@@ -0,0 +1,98 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.Action;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class BitBucketPayloadTest {
+
+    @Test
+    public void splitsACloudPushPerChange() {
+        JSONObject payload = new JSONObject()
+                .element("repository", new JSONObject().element("full_name", "owner/repo"))
+                .element("push", new JSONObject().element("changes", new JSONArray()
+                        .element(change("master", "aaa"))
+                        .element(change("feature", "bbb"))));
+
+        List<BitBucketPayload> changes = new BitBucketPayload(payload.toString(), true).split();
+
+        assertEquals(2, changes.size());
+        assertEquals("master", changes.get(0).getBranch());
+        assertEquals("aaa", changes.get(0).getCommit());
+        assertEquals("feature", changes.get(1).getBranch());
+        assertEquals("bbb", changes.get(1).getCommit());
+        assertEquals("owner/repo", changes.get(1).getRepository());
+        assertTrue(changes.get(1).isPerChange());
+        assertTrue(changes.get(1).isAsFile());
+    }
+
+    @Test
+    public void splitsAServerPushPerChange() throws Exception {
+        JSONObject payload;
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream("bitbucket_push_payload.json")) {
+            payload = JSONObject.fromObject(IOUtils.toString(input));
+        }
+        // a single change is not split
+        assertFalse(new BitBucketPayload(payload.toString()).split().get(0).isPerChange());
+
+        JSONObject develop = JSONObject.fromObject(payload.getJSONArray("changes").get(0));
+        develop.getJSONObject("ref").element("displayId", "develop");
+        payload.getJSONArray("changes").element(develop);
+
+        List<BitBucketPayload> changes = new BitBucketPayload(payload.toString()).split();
+        assertEquals(2, changes.size());
+        assertEquals("master", changes.get(0).getBranch());
+        assertEquals("develop", changes.get(1).getBranch());
+    }
+
+    @Test
+    public void keepsTheBuildsOfSplitChangesApartInTheQueue() {
+        JSONObject payload = new JSONObject()
+                .element("repository", new JSONObject().element("full_name", "owner/repo"))
+                .element("push", new JSONObject().element("changes", new JSONArray()
+                        .element(change("master", "aaa"))
+                        .element(change("feature", "bbb"))
+                        .element(change("master", "ccc"))));
+        List<BitBucketPayload> changes = new BitBucketPayload(payload.toString()).split();
+
+        assertTrue(changes.get(0).shouldSchedule(Collections.<Action>singletonList(changes.get(1))));
+        assertFalse(changes.get(0).shouldSchedule(Collections.<Action>singletonList(changes.get(2))));
+        assertFalse(changes.get(0).shouldSchedule(Collections.<Action>emptyList()));
+        // payloads which were not split keep being folded
+        assertFalse(new BitBucketPayload(payload.toString()).shouldSchedule(
+                Collections.<Action>singletonList(new BitBucketPayload(payload.toString()))));
+    }
+
+    @Test
+    public void readsTheBranchOfAPullRequest() {
+        JSONObject pullRequest = new JSONObject()
+                .element("source", new JSONObject().element("branch", new JSONObject().element("name", "feature")))
+                .element("destination", new JSONObject().element("branch", new JSONObject().element("name", "master")));
+        assertEquals("feature", new BitBucketPayload(new JSONObject().element("pullrequest", pullRequest).toString()).getBranch());
+        pullRequest.element("state", "MERGED");
+        assertEquals("master", new BitBucketPayload(new JSONObject().element("pullrequest", pullRequest).toString()).getBranch());
+
+        // partial payloads name no branch rather than failing the build
+        assertNull(new BitBucketPayload("{\"pullrequest\":{\"source\":{}}}").getBranch());
+        assertNull(new BitBucketPayload("{\"pullrequest\":{\"state\":\"MERGED\"}}").getBranch());
+        assertNull(new BitBucketPayload("{\"pullRequest\":{\"fromRef\":null}}").getBranch());
+    }
+
+    private static JSONObject change(String branch, String hash) {
+        return new JSONObject().element("new", new JSONObject()
+                .element("type", "branch")
+                .element("name", branch)
+                .element("target", new JSONObject().element("hash", hash)));
+    }
+}
@@ -0,0 +1,49 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.model.CauseAction;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.triggers.SCMTrigger;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+
+public class BitBucketPushCauseTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void buildsOfAPollingRecordKeepNoPollingLogOfTheirOwn() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0, new CauseAction(new BitBucketPushCause(42L, "alice"))));
+
+        Assert.assertFalse(new File(b.getRootDir(), "polling.log").exists());
+        Assert.assertNull(b.getAction(SCMTrigger.BuildAction.class));
+        Assert.assertEquals(42L, b.getCause(BitBucketPushCause.class).getPollingRecord());
+    }
+
+    @Test
+    public void movesThePollingLogOfAnOldBuildRecordOutOfBuildXml() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0, new CauseAction(new BitBucketPushCause("alice"))));
+        File log = new File(b.getRootDir(), "polling.log");
+        File xml = new File(b.getRootDir(), "build.xml");
+        // the cause as recorded before the polling log was referenced by id
+        FileUtils.deleteQuietly(log);
+        String tag = "<com.cloudbees.jenkins.plugins.BitBucketPushCause>";
+        String record = FileUtils.readFileToString(xml);
+        Assert.assertTrue(record.contains(tag));
+        FileUtils.writeStringToFile(xml, record.replace(tag, tag + "<pollingLog>Started on old polling</pollingLog>"));
+
+        b.reload();
+
+        Assert.assertEquals("Started on old polling", FileUtils.readFileToString(log));
+        b.save();
+        Assert.assertFalse(FileUtils.readFileToString(xml).contains("Started on old polling"));
+    }
+}
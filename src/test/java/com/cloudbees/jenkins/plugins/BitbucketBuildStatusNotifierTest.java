@@ -0,0 +1,217 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BitbucketBuildStatusNotifierTest {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void coalescesUpdatesOfTheSameStatus() throws Exception {
+        final CountDownLatch firstReceived = new CountDownLatch(1);
+        final CountDownLatch answerFirst = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                record(exchange);
+                firstReceived.countDown();
+                try {
+                    answerFirst.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                answer(exchange, 204);
+                done.countDown();
+            }
+        });
+        BitbucketBuildStatusNotifier notifier = new BitbucketBuildStatusNotifier(url, false, null, null, executor, 10, 3, 10);
+
+        assertTrue(notifier.submit(status("INPROGRESS")));
+        assertTrue(firstReceived.await(10, TimeUnit.SECONDS));
+        // sent as one update while the first one is in flight
+        assertTrue(notifier.submit(status("INPROGRESS")));
+        assertTrue(notifier.submit(status("FAILED")));
+        assertTrue(notifier.submit(status("SUCCESSFUL")));
+        assertEquals(1, notifier.getPending());
+        answerFirst.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(0).startsWith("/2.0/repositories/owner/repo/commit/abc123/statuses/build "));
+        assertEquals("SUCCESSFUL", JSONObject.fromObject(body(requests.get(1))).getString("state"));
+        notifier.shutdown();
+    }
+
+    @Test
+    public void retriesFailedDeliveries() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(2);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                record(exchange);
+                answer(exchange, calls.getAndIncrement() == 0 ? 503 : 200);
+                done.countDown();
+            }
+        });
+        BitbucketBuildStatusNotifier notifier = new BitbucketBuildStatusNotifier(url, true, "user", "secret", executor, 10, 3, 10);
+
+        assertTrue(notifier.submit(status("INPROGRESS")));
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(1).startsWith("/rest/build-status/1.0/commits/abc123 Basic dXNlcjpzZWNyZXQ="));
+        notifier.shutdown();
+    }
+
+    @Test
+    public void doesNotRetryAStateOlderThanADeliveredOne() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch firstReceived = new CountDownLatch(1);
+        final CountDownLatch answerFirst = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                record(exchange);
+                if (calls.getAndIncrement() == 0) {
+                    firstReceived.countDown();
+                    try {
+                        answerFirst.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    answer(exchange, 503);
+                } else {
+                    answer(exchange, 200);
+                }
+                done.countDown();
+            }
+        });
+        BitbucketBuildStatusNotifier notifier = new BitbucketBuildStatusNotifier(url, false, null, null, executor, 10, 3, 10);
+
+        assertTrue(notifier.submit(status("INPROGRESS")));
+        assertTrue(firstReceived.await(10, TimeUnit.SECONDS));
+        // queued while the failing INPROGRESS is in flight, delivered before its retry fires
+        assertTrue(notifier.submit(status("SUCCESSFUL")));
+        answerFirst.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // the retry of INPROGRESS is due long before this runs on the same executor
+        executor.schedule(new Runnable() {
+            public void run() {
+            }
+        }, 200, TimeUnit.MILLISECONDS).get(10, TimeUnit.SECONDS);
+        assertEquals(2, requests.size());
+        assertEquals("SUCCESSFUL", JSONObject.fromObject(body(requests.get(1))).getString("state"));
+        notifier.shutdown();
+    }
+
+    @Test
+    public void dropsStatusesBeyondTheCapacity() throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch answer = new CountDownLatch(1);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                received.countDown();
+                try {
+                    answer.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                answer(exchange, 200);
+            }
+        });
+        BitbucketBuildStatusNotifier notifier = new BitbucketBuildStatusNotifier(url, false, null, null, executor, 1, 1, 10);
+
+        assertTrue(notifier.submit(status("abc123", "INPROGRESS")));
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertTrue(notifier.submit(status("def456", "INPROGRESS")));
+        assertTrue(notifier.submit(status("def456", "SUCCESSFUL")));
+        assertFalse(notifier.submit(status("fed789", "SUCCESSFUL")));
+        answer.countDown();
+        notifier.shutdown();
+    }
+
+    @Test
+    public void deliversTheQueuedStatusesBeforeClosing() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(2);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                record(exchange);
+                answer(exchange, calls.getAndIncrement() == 0 ? 503 : 200);
+                done.countDown();
+            }
+        });
+        BitbucketBuildStatusNotifier notifier = new BitbucketBuildStatusNotifier(url, false, null, null, executor, 10, 3, 10);
+
+        assertTrue(notifier.submit(status("SUCCESSFUL")));
+        notifier.shutdownWhenIdle();
+
+        // the retry still goes through
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, requests.size());
+    }
+
+    private void record(HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        requests.add(exchange.getRequestURI().getPath() + " " + authorization + "\n"
+                + IOUtils.toString(exchange.getRequestBody(), "UTF-8"));
+    }
+
+    private static void answer(HttpExchange exchange, int code) throws IOException {
+        exchange.sendResponseHeaders(code, -1);
+        exchange.close();
+    }
+
+    private static String body(String request) {
+        return request.substring(request.indexOf('\n') + 1);
+    }
+
+    private static BitbucketBuildStatusNotifier.Status status(String state) {
+        return status("abc123", state);
+    }
+
+    private static BitbucketBuildStatusNotifier.Status status(String commit, String state) {
+        return new BitbucketBuildStatusNotifier.Status("owner/repo", commit, "job", state, "job #1",
+                "http://jenkins/job/job/1/", null);
+    }
+}
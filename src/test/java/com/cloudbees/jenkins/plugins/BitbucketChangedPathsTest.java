@@ -0,0 +1,98 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class BitbucketChangedPathsTest {
+
+    @Test
+    public void includedAndExcludedPaths() {
+        List<String> docs = Arrays.asList("docs/index.md", "README.md");
+        List<String> billing = Arrays.asList("services/billing/src/Main.java", "docs/billing.md");
+
+        assertTrue(BitbucketChangedPaths.isRelevant(docs, null, null));
+        assertFalse(BitbucketChangedPaths.isRelevant(docs, null, "docs/**\n**/*.md"));
+        assertTrue(BitbucketChangedPaths.isRelevant(billing, null, "docs/**\n**/*.md"));
+        assertTrue(BitbucketChangedPaths.isRelevant(billing, "services/billing/", null));
+        assertFalse(BitbucketChangedPaths.isRelevant(billing, "services/shipping/**", null));
+        assertFalse(BitbucketChangedPaths.isRelevant(billing, "services/billing/**, docs/**", "**/*.java, **/*.md"));
+    }
+
+    @Test
+    public void pathsFromPostServicePayload() {
+        JSONObject payload = new JSONObject()
+            .element("commits", new JSONArray()
+                .element(new JSONObject()
+                    .element("files", new JSONArray()
+                        .element(new JSONObject().element("file", "somefile.py").element("type", "modified"))
+                        .element(new JSONObject().element("file", "docs/readme.md").element("type", "added")))));
+
+        Set<String> paths = BitbucketChangedPaths.fromPayload(payload);
+
+        assertEquals(2, paths.size());
+        assertTrue(paths.contains("somefile.py"));
+        assertTrue(paths.contains("docs/readme.md"));
+    }
+
+    @Test
+    public void rangesFromBitbucketServerPush() throws IOException {
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream("bitbucket_push_payload.json")) {
+            JSONObject payload = JSONObject.fromObject(IOUtils.toString(input));
+
+            assertNull(BitbucketChangedPaths.fromPayload(payload));
+            List<String[]> ranges = BitbucketChangedPaths.ranges(payload);
+
+            assertEquals(1, ranges.size());
+            assertArrayEquals(new String[]{"ecddabb624f6f5ba43816f5926e580a5f680a932", "178864a7d521b6f5e720b386b2c2b0ef8563e0dc",
+                    "refs/heads/master"},
+                    ranges.get(0));
+        }
+    }
+
+    @Test
+    public void newBranchHasNoRange() {
+        JSONObject payload = new JSONObject()
+            .element("push", new JSONObject()
+                .element("changes", new JSONArray()
+                    .element(new JSONObject()
+                        .element("new", new JSONObject()
+                            .element("name", "feature")
+                            .element("target", new JSONObject().element("hash", "abc")))
+                        .element("old", JSONObject.fromObject("null")))));
+
+        assertTrue(BitbucketChangedPaths.ranges(payload).isEmpty());
+    }
+
+    @Test
+    public void pathsFromRawChangelog() {
+        String changelog = "commit 178864a7d521b6f5e720b386b2c2b0ef8563e0dc\n"
+                + "tree 1d9fa1d58b4e1a0e6c8d7f4a1b6a4a6c3fb1b1d5\n"
+                + "\n"
+                + "    Move the docs\n"
+                + "\n"
+                + ":100644 100644 0000000000000000000000000000000000000001 0000000000000000000000000000000000000002 M\tpom.xml\n"
+                + ":100644 100644 0000000000000000000000000000000000000003 0000000000000000000000000000000000000003 R100\tREADME.md\tdocs/README.md\n";
+
+        Set<String> paths = BitbucketChangedPaths.parseRawChangelog(changelog);
+
+        assertEquals(3, paths.size());
+        assertTrue(paths.contains("pom.xml"));
+        assertTrue(paths.contains("README.md"));
+        assertTrue(paths.contains("docs/README.md"));
+    }
+}
@@ -0,0 +1,106 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BitbucketHostThrottleTest {
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void limitsConcurrentPollingsPerHost() throws Exception {
+        BitbucketHostThrottle throttle = new BitbucketHostThrottle(timer);
+        throttle.configure(1, 0, 1000, 0);
+        CountDownLatch released = new CountDownLatch(1);
+
+        assertTrue(throttle.tryAcquire("bitbucket.example.com", countDown(released)));
+        assertFalse(throttle.tryAcquire("bitbucket.example.com", countDown(released)));
+        assertTrue(throttle.tryAcquire("bitbucket.org", countDown(released)));
+        assertTrue(throttle.tryAcquire(null, countDown(released)));
+
+        throttle.release("bitbucket.example.com", true);
+        assertTrue(released.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void parksEventsOfAFailingHostUntilAProbeSucceeds() throws Exception {
+        BitbucketHostThrottle throttle = new BitbucketHostThrottle(timer);
+        throttle.configure(0, 2, 50, 10);
+        String host = "bitbucket.example.com";
+
+        assertTrue(throttle.tryAcquire(host, null));
+        throttle.release(host, false);
+        assertTrue(throttle.tryAcquire(host, null));
+        throttle.release(host, false);
+        assertEquals(BitbucketHostThrottle.State.OPEN, throttle.getState(host));
+
+        CountDownLatch probe = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(2);
+        assertFalse(throttle.tryAcquire(host, countDown(probe)));
+        assertFalse(throttle.tryAcquire(host, countDown(released)));
+        assertFalse(throttle.tryAcquire(host, countDown(released)));
+
+        // the first parked event is let through once the open period is over
+        assertTrue(probe.await(10, TimeUnit.SECONDS));
+        assertTrue(throttle.tryAcquire(host, null));
+        assertEquals(BitbucketHostThrottle.State.HALF_OPEN, throttle.getState(host));
+        assertEquals(2, released.getCount());
+
+        throttle.release(host, true);
+        assertEquals(BitbucketHostThrottle.State.CLOSED, throttle.getState(host));
+        assertTrue(released.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void eventsWhichDoNotPollLeaveTheCircuitAsItIs() throws Exception {
+        BitbucketHostThrottle throttle = new BitbucketHostThrottle(timer);
+        throttle.configure(0, 2, 50, 10);
+        String host = "bitbucket.example.com";
+
+        assertTrue(throttle.tryAcquire(host, null));
+        throttle.release(host, false);
+        // does not reset the failure count
+        assertTrue(throttle.tryAcquire(host, null));
+        throttle.release(host);
+        assertTrue(throttle.tryAcquire(host, null));
+        throttle.release(host, false);
+        assertEquals(BitbucketHostThrottle.State.OPEN, throttle.getState(host));
+
+        CountDownLatch probe = new CountDownLatch(1);
+        CountDownLatch next = new CountDownLatch(1);
+        assertFalse(throttle.tryAcquire(host, countDown(probe)));
+        assertFalse(throttle.tryAcquire(host, countDown(next)));
+        assertTrue(probe.await(10, TimeUnit.SECONDS));
+        assertTrue(throttle.tryAcquire(host, null));
+        assertEquals(BitbucketHostThrottle.State.HALF_OPEN, throttle.getState(host));
+
+        // does not close the circuit, the next parked event probes the host instead
+        throttle.release(host);
+        assertEquals(BitbucketHostThrottle.State.OPEN, throttle.getState(host));
+        assertTrue(next.await(10, TimeUnit.SECONDS));
+        assertTrue(throttle.tryAcquire(host, null));
+        assertEquals(BitbucketHostThrottle.State.HALF_OPEN, throttle.getState(host));
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}
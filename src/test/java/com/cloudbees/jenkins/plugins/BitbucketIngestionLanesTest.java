@@ -0,0 +1,92 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BitbucketIngestionLanesTest {
+
+    private final BitbucketIngestionLanes lanes = new BitbucketIngestionLanes();
+
+    @After
+    public void tearDown() throws Exception {
+        lanes.shutdown(0);
+    }
+
+    @Test
+    public void aFullLaneDoesNotBlockTheOthers() throws Exception {
+        lanes.configure(Arrays.asList(new BitbucketLane("server", 1, 1)));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch cloud = new CountDownLatch(1);
+
+        assertTrue(lanes.submit("server", block(started, release)));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(lanes.submit("server", block(new CountDownLatch(1), release)));
+        // one payload running, one waiting: the lane is full
+        assertFalse(lanes.submit("server", block(new CountDownLatch(1), release)));
+
+        assertTrue(lanes.submit("cloud", countDown(cloud)));
+        assertTrue(cloud.await(10, TimeUnit.SECONDS));
+        release.countDown();
+
+        Map<String, Object> server = lanes.getStatistics().get("server");
+        assertEquals(2L, server.get("accepted"));
+        assertEquals(1L, server.get("rejected"));
+        assertEquals(1, server.get("capacity"));
+        assertEquals(BitbucketIngestionLanes.DEFAULT_CAPACITY, lanes.getStatistics().get("cloud").get("capacity"));
+        assertTrue(lanes.isConfigured("server"));
+        assertFalse(lanes.isConfigured("cloud"));
+    }
+
+    @Test
+    public void shutdownProcessesTheQueuedPayloadsWithinTheTimeout() throws Exception {
+        lanes.configure(Arrays.asList(new BitbucketLane("server", 1, 2)));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch queued = new CountDownLatch(1);
+        CountDownLatch dropped = new CountDownLatch(1);
+
+        assertTrue(lanes.submit("server", block(started, release)));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(lanes.submit("server", countDown(queued)));
+        release.countDown();
+        lanes.shutdown(10000);
+        assertEquals(0, queued.getCount());
+
+        // a lane which cannot drain in time drops what is left
+        assertTrue(lanes.submit("cloud", block(new CountDownLatch(1), new CountDownLatch(1))));
+        assertTrue(lanes.submit("cloud", countDown(dropped)));
+        lanes.shutdown(0);
+        assertEquals(1, dropped.getCount());
+    }
+
+    private static Runnable block(final CountDownLatch started, final CountDownLatch release) {
+        return new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,44 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.FreeStyleProject;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.SubmoduleConfig;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.extensions.GitSCMExtension;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class BitbucketLastSeenHashesRecordTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void recordsTheRemoteOfTheNotifiedRepository() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(Arrays.asList(
+                new UserRemoteConfig("https://bitbucket.org/owner/repo.git", "origin", null, null),
+                new UserRemoteConfig("https://bitbucket.org/owner/other.git", "other", null, null)),
+                Collections.singletonList(new BranchSpec("*/master")), false,
+                Collections.<SubmoduleConfig>emptyList(), null, null, Collections.<GitSCMExtension>emptyList()));
+
+        BitbucketLastSeenHashes.record(p, BitBucketPayload.notification("https://bitbucket.org/owner/other", "master", "aaa"));
+
+        // read once and kept for the following events
+        assertSame(BitbucketLastSeenHashes.of(p), BitbucketLastSeenHashes.of(p));
+        List<BitbucketLastSeenHashes.Entry> entries = new BitbucketLastSeenHashes(
+                new File(p.getRootDir(), "bitbucket-last-seen.xml")).getEntries();
+        assertEquals(1, entries.size());
+        assertEquals("https://bitbucket.org/owner/other.git", entries.get(0).getRemote());
+        assertEquals("aaa", entries.get(0).getCommit());
+    }
+}
@@ -0,0 +1,69 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BitbucketLastSeenHashesTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void keepsTheLastCommitOfEveryBranch() throws Exception {
+        File file = new File(tmp.getRoot(), "bitbucket-last-seen.xml");
+        BitbucketLastSeenHashes hashes = new BitbucketLastSeenHashes(file);
+
+        hashes.update("Owner/Repo", "https://bitbucket.org/owner/repo.git", "master", "aaa", 10);
+        hashes.update("owner/repo", null, "master", "bbb", 20);
+        hashes.update("owner/repo", "https://bitbucket.org/owner/repo.git", "feature", "ccc", 15);
+        // the same commit again does not count as activity
+        hashes.update("owner/repo", null, "feature", "ccc", 30);
+
+        List<BitbucketLastSeenHashes.Entry> entries = new BitbucketLastSeenHashes(file).getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("master", entries.get(0).getBranch());
+        assertEquals("bbb", entries.get(0).getCommit());
+        assertEquals("https://bitbucket.org/owner/repo.git", entries.get(0).getRemote());
+        assertEquals(20, new BitbucketLastSeenHashes(file).getLastActivity());
+    }
+
+    @Test
+    public void recordsEveryBranchOfAPush() {
+        BitbucketLastSeenHashes hashes = new BitbucketLastSeenHashes(null);
+        BitBucketPayload cloud = new BitBucketPayload("{\"repository\":{\"full_name\":\"owner/repo\"},\"push\":{\"changes\":["
+                + "{\"new\":{\"name\":\"master\",\"target\":{\"hash\":\"aaa\"}}},"
+                + "{\"new\":{\"name\":\"feature\",\"target\":{\"hash\":\"bbb\"}}},"
+                + "{\"new\":null,\"old\":{\"name\":\"gone\",\"target\":{\"hash\":\"ccc\"}}}]}}");
+        BitBucketPayload server = new BitBucketPayload("{\"repository\":{\"slug\":\"repo\",\"project\":{\"key\":\"PROJ\"}},"
+                + "\"changes\":[{\"ref\":{\"displayId\":\"master\"},\"toHash\":\"ddd\"},"
+                + "{\"ref\":{\"displayId\":\"release\"},\"toHash\":\"eee\"}]}");
+
+        assertTrue(hashes.update(cloud, null, 10));
+        assertTrue(hashes.update(server, null, 20));
+
+        List<BitbucketLastSeenHashes.Entry> entries = hashes.getEntries();
+        assertEquals(4, entries.size());
+        assertEquals("master", entries.get(0).getBranch());
+        assertEquals("aaa", entries.get(0).getCommit());
+        assertEquals("feature", entries.get(1).getBranch());
+        assertEquals("bbb", entries.get(1).getCommit());
+        assertEquals("PROJ/repo", entries.get(2).getRepository());
+        assertEquals("ddd", entries.get(2).getCommit());
+        assertEquals("release", entries.get(3).getBranch());
+        assertEquals("eee", entries.get(3).getCommit());
+    }
+
+    @Test
+    public void startsEmptyWithoutFile() {
+        BitbucketLastSeenHashes hashes = new BitbucketLastSeenHashes(null);
+        assertTrue(hashes.getEntries().isEmpty());
+        assertEquals(0, hashes.getLastActivity());
+    }
+}
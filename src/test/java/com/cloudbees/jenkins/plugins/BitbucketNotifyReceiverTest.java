@@ -0,0 +1,87 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BitbucketNotifyReceiverTest {
+
+    @Mock private StaplerRequest request;
+    @Mock private StaplerResponse response;
+    @Mock private BitbucketJobProbe probe;
+
+    @Test
+    public void notifiesEveryBranchOfABatch() throws Exception {
+        when(request.getContentType()).thenReturn("application/x-www-form-urlencoded");
+        when(request.getParameterValues("url")).thenReturn(new String[]{
+                "https://bitbucket.example.com/scm/proj/repo.git", "git@bitbucket.org:owner/other.git"});
+        when(request.getParameterValues("branch")).thenReturn(new String[]{"master", "feature/x"});
+        when(request.getParameterValues("sha")).thenReturn(new String[]{"abc123", ""});
+        when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+
+        new BitbucketNotifyReceiver(probe).doIndex(request, response);
+
+        ArgumentCaptor<BitBucketPayload> payloads = ArgumentCaptor.forClass(BitBucketPayload.class);
+        verify(probe, times(2)).triggerMatchingJobs(eq("notification"), any(String.class), eq("git"), payloads.capture());
+        List<BitBucketPayload> captured = payloads.getAllValues();
+
+        assertEquals("proj/repo", captured.get(0).getRepository());
+        assertEquals("master", captured.get(0).getBranch());
+        assertEquals("abc123", captured.get(0).getCommit());
+        assertEquals("owner/other", captured.get(1).getRepository());
+        assertEquals("feature/x", captured.get(1).getBranch());
+        assertNull(captured.get(1).getCommit());
+        assertEquals("", captured.get(0).getPayload());
+    }
+
+    @Test
+    public void rejectsShasWhichCannotBeMatchedToTheirUrl() throws Exception {
+        when(request.getParameterValues("url")).thenReturn(new String[]{
+                "https://bitbucket.example.com/scm/proj/repo.git", "git@bitbucket.org:owner/other.git"});
+        when(request.getParameterValues("branch")).thenReturn(new String[]{"master", "feature/x"});
+        when(request.getParameterValues("sha")).thenReturn(new String[]{"abc123"});
+
+        new BitbucketNotifyReceiver(probe).doIndex(request, response);
+
+        verify(response).sendError(eq(400), any(String.class));
+        verifyZeroInteractions(probe);
+    }
+
+    @Test
+    public void rejectsUnsupportedScmsBeforeTriggeringAnything() throws Exception {
+        when(request.getParameter("scm")).thenReturn("svn");
+        when(request.getParameterValues("url")).thenReturn(new String[]{
+                "https://bitbucket.example.com/scm/proj/repo.git", "git@bitbucket.org:owner/other.git"});
+        when(request.getParameterValues("branch")).thenReturn(new String[]{"master", "feature/x"});
+
+        new BitbucketNotifyReceiver(probe).doIndex(request, response);
+
+        verify(response).sendError(eq(400), any(String.class));
+        verifyZeroInteractions(probe);
+    }
+
+    @Test
+    public void rejectsRequestsWithoutNotification() throws Exception {
+        new BitbucketNotifyReceiver(probe).doIndex(request, response);
+
+        verify(response).sendError(eq(400), any(String.class));
+    }
+}
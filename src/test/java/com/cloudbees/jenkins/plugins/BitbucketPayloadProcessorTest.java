@@ -1,17 +1,23 @@
 package com.cloudbees.jenkins.plugins;
 
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
+import jenkins.scm.api.SCMEvent;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
@@ -19,6 +25,7 @@ import org.apache.sshd.common.util.IoUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -62,11 +69,11 @@ public class BitbucketPayloadProcessorTest {
 
         payloadProcessor.processPayload(payload, request);
 
-        verify(probe).triggerMatchingJobs(user, url, "git", payload.toString());
+        verify(probe).triggerMatchingJobs(user, url, "git", payload.toString(), "cloud");
 
         payloadProcessor.processPayload(hgLoad, request);
 
-        verify(probe).triggerMatchingJobs(user, url, "hg", hgLoad.toString());
+        verify(probe).triggerMatchingJobs(user, url, "hg", hgLoad.toString(), "cloud");
     }
 
     @Test
@@ -92,7 +99,7 @@ public class BitbucketPayloadProcessorTest {
 
         payloadProcessor.processPayload(payload, request);
 
-        verify(probe).triggerMatchingJobs(user, url, "git", payload.toString());
+        verify(probe).triggerMatchingJobs(user, url, "git", payload.toString(), "server-post-webhooks");
     }
 
     @Test
@@ -109,10 +116,28 @@ public class BitbucketPayloadProcessorTest {
 
         payloadProcessor.processPayload(payload, request);
 
-        verify(probe).triggerMatchingJobs("old_user", "https://staging.bitbucket.org/old_user/old_repo", "git", payload.toString());
+        verify(probe).triggerMatchingJobs("old_user", "https://staging.bitbucket.org/old_user/old_repo", "git", payload.toString(), "legacy");
     }
     
     
+    @Test
+    public void triggersTheJobsInTheLaneThePayloadWasReceivedIn() {
+        String user = "test_user";
+        String url = "https://bitbucket.org/test_user/test_repo";
+
+        JSONObject payload = new JSONObject()
+            .element("actor", new JSONObject()
+                .element("nickname", user))
+            .element("repository", new JSONObject()
+                .element("links", new JSONObject()
+                    .element("html", new JSONObject()
+                        .element("href", url))));
+
+        payloadProcessor.processPayload(BitbucketPayloadProcessor.Source.CLOUD, payload, "repo:push", "eu");
+
+        verify(probe).triggerMatchingJobs(user, url, "git", payload.toString(), "eu");
+    }
+
     @Test
     public void processWebhookPayloadBitBucketSelfHostedPush() throws IOException {
         String user = "user";
@@ -122,7 +147,7 @@ public class BitbucketPayloadProcessorTest {
         	JSONObject payload = JSONObject.fromObject(IOUtils.toString(input));
             payloadProcessor.processPayload(payload, request);
             
-            verify(probe).triggerMatchingJobs(user, url, "git", payload.toString());
+            verify(probe).triggerMatchingJobs(user, url, "git", payload.toString(), "server");
         }
         
     }
@@ -136,11 +161,67 @@ public class BitbucketPayloadProcessorTest {
         	JSONObject payload = JSONObject.fromObject(IOUtils.toString(input));
             payloadProcessor.processPayload(payload, request);
             
-            verify(probe).triggerMatchingJobs(user, url, "git", payload.toString());
+            verify(probe).triggerMatchingJobs(user, url, "git", payload.toString(), "server");
         }
     }
 
 
+    @Test
+    public void processWebhookPayloadBitBucketSelfHostedPRWithoutCodeChange() throws IOException {
+        String user = "user";
+        String url = "proj/repository";
+
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream("bitbucket_pr_merge_payload.json")) {
+            JSONObject payload = JSONObject.fromObject(IOUtils.toString(input));
+            payloadProcessor.processPayload(payload, request);
+
+            // a comment on the same pull request does not change the source commit nor the target branch
+            payload.element("eventKey", "pr:comment:added");
+            payloadProcessor.processPayload(payload, request);
+
+            verify(probe, times(1)).triggerMatchingJobs(eq(user), eq(url), eq("git"), anyString(), eq("server"));
+        }
+    }
+
+    @Test
+    public void processWebhookPullRequestPayloadOnlyTriggersOnCodeChange() {
+        when(request.getHeader("user-agent")).thenReturn("Bitbucket-Webhooks/2.0");
+
+        String user = "test_user";
+        String url = "https://bitbucket.org/test_user/test_repo";
+
+        JSONObject payload = new JSONObject()
+            .element("actor", new JSONObject()
+                .element("nickname", user))
+            .element("repository", new JSONObject()
+                .element("links", new JSONObject()
+                    .element("html", new JSONObject()
+                        .element("href", url))))
+            .element("pullrequest", new JSONObject()
+                .element("id", 1)
+                .element("state", "OPEN")
+                .element("source", new JSONObject()
+                    .element("commit", new JSONObject()
+                        .element("hash", "aaaaaaa")))
+                .element("destination", new JSONObject()
+                    .element("branch", new JSONObject()
+                        .element("name", "master"))));
+
+        when(request.getHeader("x-event-key")).thenReturn("pullrequest:created");
+        payloadProcessor.processPayload(payload, request);
+        when(request.getHeader("x-event-key")).thenReturn("pullrequest:approved");
+        payloadProcessor.processPayload(payload, request);
+
+        verify(probe, times(1)).triggerMatchingJobs(user, url, "git", payload.toString(), "cloud");
+
+        payload.getJSONObject("pullrequest").getJSONObject("source").getJSONObject("commit").element("hash", "bbbbbbb");
+        when(request.getHeader("x-event-key")).thenReturn("pullrequest:updated");
+        payloadProcessor.processPayload(payload, request);
+
+        verify(probe).triggerMatchingJobs(user, url, "git", payload.toString(), "cloud");
+    }
+
+
     @Test
     public void testProcessWebhookPayload_inCaseOwnerUsernameFieldIsReplacedByNickName() {
         // Set headers so that payload processor will parse as new Webhook payload
@@ -168,10 +249,43 @@ public class BitbucketPayloadProcessorTest {
 
         payloadProcessor.processPayload(payload, request);
 
-        verify(probe).triggerMatchingJobs(user, url, "git", payload.toString());
+        verify(probe).triggerMatchingJobs(user, url, "git", payload.toString(), "cloud");
 
         payloadProcessor.processPayload(hgLoad, request);
 
-        verify(probe).triggerMatchingJobs(user, url, "hg", hgLoad.toString());
+        verify(probe).triggerMatchingJobs(user, url, "hg", hgLoad.toString(), "cloud");
+    }
+
+    @Test
+    public void processWebhookPayloadBitBucketSelfHostedPushFiresHeadEvents() throws IOException {
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream("bitbucket_push_payload.json")) {
+            JSONObject payload = JSONObject.fromObject(IOUtils.toString(input));
+            payloadProcessor.processPayload(payload, request);
+
+            ArgumentCaptor<List> events = ArgumentCaptor.forClass(List.class);
+            verify(probe).fireHeadEvents(events.capture());
+            assertEquals(1, events.getValue().size());
+            BitbucketSCMHeadEvent event = (BitbucketSCMHeadEvent) events.getValue().get(0);
+            assertEquals(SCMEvent.Type.UPDATED, event.getType());
+            assertEquals("proj/repository", event.getRepository());
+            assertEquals("master", event.getBranch());
+            assertEquals("178864a7d521b6f5e720b386b2c2b0ef8563e0dc", event.getHash());
+        }
+    }
+
+    @Test
+    public void detectsTheSourceOfThePayload() throws IOException {
+        JSONObject links = new JSONObject().element("links", new JSONObject());
+        assertEquals(BitbucketPayloadProcessor.Source.LEGACY_POST,
+                payloadProcessor.detect(new JSONObject().element("canon_url", "https://bitbucket.org"), request));
+        assertEquals(BitbucketPayloadProcessor.Source.SERVER_POST_WEBHOOKS,
+                payloadProcessor.detect(new JSONObject().element("actor", new JSONObject()).element("repository", links), request));
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream("bitbucket_push_payload.json")) {
+            assertEquals(BitbucketPayloadProcessor.Source.SERVER_NATIVE,
+                    payloadProcessor.detect(JSONObject.fromObject(IOUtils.toString(input)), request));
+        }
+        when(request.getHeader("user-agent")).thenReturn("Bitbucket-Webhooks/2.0");
+        assertEquals(BitbucketPayloadProcessor.Source.CLOUD,
+                payloadProcessor.detect(new JSONObject().element("actor", new JSONObject()).element("repository", links), request));
     }
 }
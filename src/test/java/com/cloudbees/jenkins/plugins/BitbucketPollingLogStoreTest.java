@@ -0,0 +1,46 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BitbucketPollingLogStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void retainsOnlyTheMostRecentLogs() throws Exception {
+        BitbucketPollingLogStore store = new BitbucketPollingLogStore(tmp.getRoot(), 3);
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 5; i++) {
+            long id = store.newRecord();
+            FileUtils.writeStringToFile(store.getFile(id), "polling " + i);
+            ids.add(id);
+        }
+
+        assertFalse(store.getFile(ids.get(0)).exists());
+        assertFalse(store.getFile(ids.get(1)).exists());
+        for (long id : ids.subList(2, 5)) {
+            assertTrue(store.getFile(id).exists());
+        }
+        assertEquals(3, tmp.getRoot().listFiles().length);
+        assertEquals(store.getFile(ids.get(4)), store.getLatest());
+    }
+
+    @Test
+    public void idsGrowWithTime() {
+        BitbucketPollingLogStore store = new BitbucketPollingLogStore(new File(tmp.getRoot(), "logs"), 3);
+        long first = store.newRecord();
+        assertTrue(store.newRecord() > first);
+    }
+}
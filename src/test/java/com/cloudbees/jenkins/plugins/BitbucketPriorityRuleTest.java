@@ -0,0 +1,30 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.util.FormValidation;
+import org.junit.Test;
+
+public class BitbucketPriorityRuleTest {
+
+    @Test
+    public void matchesTheRepositoryBranchAndEvent() {
+        BitbucketPriorityRule rule = new BitbucketPriorityRule("releases", "owner/*", "release/**", null, 0);
+
+        assertTrue(rule.matches(BitBucketPayload.notification("Owner/Repo", "release/1.0", "aaa")));
+        assertFalse(rule.matches(BitBucketPayload.notification("owner/repo", "master", "aaa")));
+        assertFalse(rule.matches(BitBucketPayload.notification("other/repo", "release/1.0", "aaa")));
+        // a blank pattern matches anything, even a missing value
+        assertTrue(new BitbucketPriorityRule(null, " ", null, null, 0).matches(
+                BitBucketPayload.notification("owner/repo", null, "aaa")));
+    }
+
+    @Test
+    public void checksThePatterns() {
+        assertEquals(FormValidation.Kind.OK, BitbucketPriorityRule.DescriptorImpl.checkPattern("").kind);
+        assertEquals(FormValidation.Kind.OK, BitbucketPriorityRule.DescriptorImpl.checkPattern("release/**").kind);
+        assertEquals(FormValidation.Kind.WARNING, BitbucketPriorityRule.DescriptorImpl.checkPattern("release/.*").kind);
+    }
+}
@@ -0,0 +1,42 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BitbucketPullRequestCacheTest {
+
+    @Test
+    public void triggersOnlyWhenTheCodeChanges() {
+        BitbucketPullRequestCache cache = new BitbucketPullRequestCache(null, 10);
+
+        assertTrue(cache.update("repo#1", "aaa", "master", "OPEN"));
+        // comments, approvals and title edits keep the same commit and target
+        assertFalse(cache.update("repo#1", "aaa", "master", "OPEN"));
+        // new commit pushed to the source branch
+        assertTrue(cache.update("repo#1", "bbb", "master", "OPEN"));
+        // target branch changed
+        assertTrue(cache.update("repo#1", "bbb", "develop", "OPEN"));
+        // declining does not trigger
+        assertFalse(cache.update("repo#1", "bbb", "develop", "DECLINED"));
+        // merging does
+        assertTrue(cache.update("repo#1", "bbb", "develop", "MERGED"));
+        assertFalse(cache.update("repo#1", "bbb", "develop", "MERGED"));
+    }
+
+    @Test
+    public void forgetsTheLeastRecentlyUpdatedPullRequest() {
+        BitbucketPullRequestCache cache = new BitbucketPullRequestCache(null, 2);
+
+        cache.update("repo#1", "aaa", "master", "OPEN");
+        cache.update("repo#2", "bbb", "master", "OPEN");
+        cache.update("repo#1", "aaa", "master", "OPEN");
+        cache.update("repo#3", "ccc", "master", "OPEN");
+
+        assertEquals(2, cache.size());
+        assertFalse(cache.update("repo#1", "aaa", "master", "OPEN"));
+        assertTrue(cache.update("repo#2", "bbb", "master", "OPEN"));
+    }
+}
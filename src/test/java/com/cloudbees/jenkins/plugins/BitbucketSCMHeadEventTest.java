@@ -0,0 +1,69 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import jenkins.scm.api.SCMEvent;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+public class BitbucketSCMHeadEventTest {
+
+    @Test
+    public void eventsOfACloudPush() {
+        JSONObject payload = new JSONObject()
+                .element("repository", new JSONObject().element("full_name", "Owner/Repo"))
+                .element("push", new JSONObject().element("changes", new JSONArray()
+                        .element(change(null, ref("branch", "feature", "aaa")))
+                        .element(change(ref("branch", "master", "bbb"), ref("branch", "master", "ccc")))
+                        .element(change(ref("branch", "old", "ddd"), null))
+                        .element(change(null, ref("tag", "v1.0", "eee")))));
+
+        List<BitbucketSCMHeadEvent> events = BitbucketSCMHeadEvent.fromPayload(payload, "https://bitbucket.org/Owner/Repo");
+
+        assertEquals(3, events.size());
+        assertEquals(SCMEvent.Type.CREATED, events.get(0).getType());
+        assertEquals("feature", events.get(0).getBranch());
+        assertEquals("aaa", events.get(0).getHash());
+        assertEquals(SCMEvent.Type.UPDATED, events.get(1).getType());
+        assertEquals("ccc", events.get(1).getHash());
+        assertEquals(SCMEvent.Type.REMOVED, events.get(2).getType());
+        assertNull(events.get(2).getHash());
+        assertEquals("owner/repo", events.get(0).getRepository());
+        assertEquals("repo", events.get(0).getSourceName());
+    }
+
+    @Test
+    public void matchesTheRemotesOfTheRepository() {
+        BitbucketSCMHeadEvent cloud = new BitbucketSCMHeadEvent(SCMEvent.Type.UPDATED, 0, new JSONObject(),
+                "owner/repo", "bitbucket.org", "master", "aaa");
+        assertTrue(cloud.isMatch("https://bitbucket.org/owner/repo.git"));
+        assertTrue(cloud.isMatch("git@bitbucket.org:Owner/repo.git"));
+        assertFalse(cloud.isMatch("https://github.com/owner/repo.git"));
+        assertFalse(cloud.isMatch("https://bitbucket.org/owner/repository.git"));
+
+        BitbucketSCMHeadEvent server = new BitbucketSCMHeadEvent(SCMEvent.Type.UPDATED, 0, new JSONObject(),
+                "PROJ/repo", null, "master", "aaa");
+        assertTrue(server.isMatch("https://bitbucket.example.com/scm/proj/repo.git"));
+        assertTrue(server.isMatch("ssh://git@bitbucket.example.com:7999/proj/repo.git"));
+    }
+
+    private static JSONObject change(JSONObject oldRef, JSONObject newRef) {
+        return new JSONObject()
+                .element("old", oldRef != null ? oldRef : JSONNull.getInstance())
+                .element("new", newRef != null ? newRef : JSONNull.getInstance());
+    }
+
+    private static JSONObject ref(String type, String name, String hash) {
+        return new JSONObject()
+                .element("type", type)
+                .element("name", name)
+                .element("target", new JSONObject().element("hash", hash));
+    }
+}
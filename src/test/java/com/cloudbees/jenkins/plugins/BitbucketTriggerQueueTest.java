@@ -0,0 +1,159 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BitbucketTriggerQueueTest {
+
+    private final ExecutorService executors = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executors.shutdownNow();
+    }
+
+    @Test
+    public void servesHigherPrioritiesFirst() throws Exception {
+        BitbucketTriggerQueue queue = new BitbucketTriggerQueue(executors);
+        queue.configure(1, 0);
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<String> served = Collections.synchronizedList(new ArrayList<String>());
+
+        // keeps the only worker busy while the other events are queued
+        queue.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        }, "default", 0);
+        queue.execute(record("feature-1", served, done), "default", 0);
+        queue.execute(record("feature-2", served, done), "default", 0);
+        queue.execute(record("master", served, done), "hotfix", 10);
+        blocked.countDown();
+
+        done.await(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("master", "feature-1", "feature-2"), served);
+        assertEquals(1, queue.getStatistics().get("hotfix").getServed());
+        assertEquals(3, queue.getStatistics().get("default").getServed());
+    }
+
+    @Test
+    public void agingPreventsStarvation() throws Exception {
+        BitbucketTriggerQueue queue = new BitbucketTriggerQueue(executors);
+        queue.configure(1, 1);
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<String> served = Collections.synchronizedList(new ArrayList<String>());
+
+        queue.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        }, "default", 0);
+        queue.execute(record("old", served, done), "default", 0);
+        Thread.sleep(50);
+        queue.execute(record("new", served, done), "hotfix", 10);
+        blocked.countDown();
+
+        done.await(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("old", "new"), served);
+    }
+
+    @Test
+    public void busyWorkersDoNotDelayNewTasks() throws Exception {
+        BitbucketTriggerQueue queue = new BitbucketTriggerQueue(executors);
+        queue.configure(4, 0);
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<String> served = Collections.synchronizedList(new ArrayList<String>());
+
+        queue.execute(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "default", 0);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        queue.execute(record("master", served, done), "hotfix", 10);
+
+        // served by another worker while the first one is still busy
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("master"), served);
+        blocked.countDown();
+    }
+
+    @Test
+    public void aBusyLaneDoesNotDelayTheOthers() throws Exception {
+        BitbucketTriggerQueue queue = new BitbucketTriggerQueue(executors);
+        queue.configure(1, 0, Collections.singletonMap("eu", 2));
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<String> served = Collections.synchronizedList(new ArrayList<String>());
+        Runnable block = new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        // the eu lane runs two tasks at the same time, the cloud lane one
+        queue.execute(block, "eu", "default", 0);
+        queue.execute(block, "eu", "default", 0);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        queue.execute(record("eu", served, done), "eu", "hotfix", 10);
+        queue.execute(record("cloud", served, done), "cloud", "default", 0);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("cloud"), served);
+        assertEquals(1, queue.getLaneStatistics().get("eu").getQueued());
+        assertEquals(2, queue.getLaneStatistics().get("eu").getInProgress());
+        assertEquals(2, queue.getWorkers("eu"));
+        assertEquals(1, queue.getWorkers("cloud"));
+        blocked.countDown();
+    }
+
+    private static Runnable record(final String name, final List<String> served, final CountDownLatch done) {
+        return new Runnable() {
+            public void run() {
+                served.add(name);
+                done.countDown();
+            }
+        };
+    }
+}
@@ -1,6 +1,8 @@
 package com.cloudbees.jenkins.plugins;
 
+import hudson.model.FreeStyleProject;
 import hudson.model.JobProperty;
+import hudson.model.Queue;
 import hudson.triggers.Trigger;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.cps.SnippetizerTester;
@@ -13,8 +15,13 @@ import org.junit.Test;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Allan Burdajewicz
@@ -35,6 +42,94 @@ public class BitbucketTriggerTest {
         Assert.assertTrue(trigger instanceof BitBucketTrigger);
     }
 
+    @Test
+    public void newerPushSupersedesTheQueuedBuildOfAnOlderOne() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        BitBucketTrigger trigger = new BitBucketTrigger();
+        trigger.setSupersedeBuilds(true);
+        p.addTrigger(trigger);
+        trigger.start(p, true);
+        // a single worker serves the events in order, see awaitEvents
+        trigger.getDescriptor().getQueue().configure(1, 0);
+
+        String url = "https://bitbucket.org/owner/repo.git";
+        trigger.onPost("alice", BitBucketPayload.notification(url, "master", "aaa"));
+        trigger.onPost("bob", BitBucketPayload.notification(url, "master", "bbb"));
+        awaitEvents(trigger);
+
+        // both pushes were handled while the first build was still in its quiet period
+        Assert.assertNull(p.getLastBuild());
+        Queue.Item[] items = j.jenkins.getQueue().getItems();
+        Assert.assertEquals(1, items.length);
+        Assert.assertEquals("bbb", items[0].getAction(BitBucketPayload.class).getCommit());
+    }
+
+    @Test
+    public void supersedingKeepsThePushesOfOtherBranches() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        BitBucketTrigger trigger = new BitBucketTrigger();
+        trigger.setSupersedeBuilds(true);
+        p.addTrigger(trigger);
+        trigger.start(p, true);
+        // a single worker serves the events in order, see awaitEvents
+        trigger.getDescriptor().getQueue().configure(1, 0);
+
+        String url = "https://bitbucket.org/owner/repo.git";
+        trigger.onPost("alice", BitBucketPayload.notification(url, "master", "aaa"));
+        trigger.onPost("bob", BitBucketPayload.notification(url, "feature", "bbb"));
+        trigger.onPost("carol", BitBucketPayload.notification(url, "master", "ccc"));
+        awaitEvents(trigger);
+
+        // the push to feature was not folded into the build of master, which the last push superseded
+        Queue.Item[] items = j.jenkins.getQueue().getItems();
+        Assert.assertEquals(2, items.length);
+        Set<String> commits = new HashSet<String>();
+        for (Queue.Item item : items) {
+            commits.add(item.getAction(BitBucketPayload.class).getCommit());
+        }
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("bbb", "ccc")), commits);
+    }
+
+    @Test
+    public void schedulesEveryChangeOfASplitPushFromOneTask() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setConcurrentBuild(true);
+        BitBucketTrigger trigger = new BitBucketTrigger();
+        trigger.setSplitChanges(true);
+        p.addTrigger(trigger);
+        trigger.start(p, true);
+        // a single worker serves the events in order, see awaitEvents
+        trigger.getDescriptor().getQueue().configure(1, 0);
+
+        trigger.onPost("alice", new BitBucketPayload("{\"repository\":{\"full_name\":\"owner/repo\"},\"push\":{\"changes\":["
+                + "{\"new\":{\"name\":\"master\",\"target\":{\"hash\":\"aaa\"}}},"
+                + "{\"new\":{\"name\":\"feature\",\"target\":{\"hash\":\"bbb\"}}}]}}"));
+        awaitEvents(trigger);
+
+        Assert.assertEquals(1, trigger.getDescriptor().getQueue().getStatistics().get(BitBucketTrigger.DEFAULT_PRIORITY_CLASS).getServed());
+        Queue.Item[] items = j.jenkins.getQueue().getItems();
+        Assert.assertEquals(2, items.length);
+        Set<String> branches = new HashSet<String>();
+        for (Queue.Item item : items) {
+            branches.add(item.getAction(BitBucketPayload.class).getBranch());
+        }
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("master", "feature")), branches);
+    }
+
+    /**
+     * Waits until the events posted so far have been polled and scheduled: the only worker of the default lane
+     * serves its tasks of equal priority in order, so a task queued after them runs once they are done.
+     */
+    private static void awaitEvents(BitBucketTrigger trigger) throws InterruptedException {
+        final CountDownLatch handled = new CountDownLatch(1);
+        trigger.getDescriptor().getQueue().execute(new Runnable() {
+            public void run() {
+                handled.countDown();
+            }
+        }, "test", 0);
+        Assert.assertTrue(handled.await(10, TimeUnit.SECONDS));
+    }
+
     @SuppressWarnings("rawtypes")
     @Test public void configRoundTripBitbucketTrigger() throws Exception {
         PipelineTriggersJobProperty triggersProperty = new PipelineTriggersJobProperty(null);
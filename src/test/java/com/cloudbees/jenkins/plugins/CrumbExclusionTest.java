@@ -26,4 +26,14 @@ public class CrumbExclusionTest {
 
         assertEquals(resp.getStatusCode(), 200);
     }
+
+    @Test
+    public void shouldNotRequireACrumbForTheLaneUrls() throws IOException, SAXException {
+        JenkinsRule.WebClient webClient = jenkins.createWebClient();
+        WebRequest wrs = new WebRequest(new URL(webClient.getContextPath() + "ronte-bitbucket-hook/server-a/"),
+                HttpMethod.POST);
+        WebResponse resp = webClient.getPage(wrs).getWebResponse();
+
+        assertEquals(resp.getStatusCode(), 200);
+    }
 }
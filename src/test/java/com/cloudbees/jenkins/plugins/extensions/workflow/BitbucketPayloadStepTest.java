@@ -0,0 +1,33 @@
+package com.cloudbees.jenkins.plugins.extensions.workflow;
+
+import com.cloudbees.jenkins.plugins.BitBucketPayload;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class BitbucketPayloadStepTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void resolvesNestedFieldsOfThePayload() throws Exception {
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("currentBuild.description = "
+                + "bitbucketPayload(field: 'push.changes.0.new.name') + ' ' "
+                + "+ bitbucketPayload().repository + ' ' "
+                + "+ bitbucketPayload(field: 'push.changes.1.new.name')"));
+        String payload = "{\"push\":{\"changes\":[{\"new\":{\"name\":\"feature/x\"}}]},"
+                + "\"repository\":{\"full_name\":\"owner/repo\",\"name\":\"repo\"}}";
+
+        WorkflowRun b = j.assertBuildStatusSuccess(p.scheduleBuild2(0,
+                new CauseAction(new Cause.UserIdCause()), new BitBucketPayload(payload)));
+
+        Assert.assertEquals("feature/x owner/repo null", b.getDescription());
+    }
+}